@@ -0,0 +1,130 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.ServiceException;
+import intradoc.common.SystemUtils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent builds of the same bundle. The first caller for a key
+ * runs the build, callers arriving while it is running wait for and share its
+ * result instead of building the bundle again. Waiting callers give up after
+ * a timeout, so a stuck build cannot hold request threads indefinitely.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BuildCoordinator {
+
+  private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+
+  private final AtomicLong builds = new AtomicLong();
+
+  private final AtomicLong coalescedWaits = new AtomicLong();
+
+  private final AtomicLong staleServed = new AtomicLong();
+
+  private final long timeoutMillis;
+
+  /**
+   * @param timeoutMillis
+   *          how long a caller waits for another caller's build
+   */
+  public BuildCoordinator(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Run [builder] for [key], or wait for the build already running for it.
+   * 
+   * @param key
+   * @param builder
+   * @return the result of the build
+   * @throws ServiceException
+   *           if the build failed, or did not finish within the timeout
+   */
+  public String build(String key, Callable<String> builder) throws ServiceException {
+    FutureTask<String> task = new FutureTask<String>(builder);
+    FutureTask<String> running = inFlight.putIfAbsent(key, task);
+
+    if (running == null) {
+      builds.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      return getResult(key, task);
+    }
+
+    coalescedWaits.incrementAndGet();
+    SystemUtils.trace("wsu", "build: waiting for build in progress: " + key);
+
+    return getResult(key, running);
+  }
+
+  /**
+   * Whether a build is currently running for [key].
+   * 
+   * @param key
+   * @return
+   */
+  public boolean isBuilding(String key) {
+    return inFlight.containsKey(key);
+  }
+
+  /**
+   * Record that a caller was given the previous bundle while a build was
+   * running.
+   */
+  public void recordStaleServed() {
+    staleServed.incrementAndGet();
+  }
+
+  /**
+   * @return the number of builds run
+   */
+  public long getBuilds() {
+    return builds.get();
+  }
+
+  /**
+   * @return the number of callers which waited on another caller's build
+   */
+  public long getCoalescedWaits() {
+    return coalescedWaits.get();
+  }
+
+  /**
+   * @return the number of callers served the previous bundle during a build
+   */
+  public long getStaleServed() {
+    return staleServed.get();
+  }
+
+  private String getResult(String key, FutureTask<String> task) throws ServiceException {
+    try {
+      return task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      SystemUtils.trace("wsu", "build: timed out waiting for build: " + key);
+      throw new ServiceException("Timed out after " + timeoutMillis + "ms waiting for bundle build");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceException("Interrupted while waiting for bundle build");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ServiceException) {
+        throw (ServiceException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new ServiceException(e.getCause());
+    }
+  }
+}
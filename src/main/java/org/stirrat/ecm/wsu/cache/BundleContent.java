@@ -0,0 +1,20 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.IOException;
+
+/**
+ * Content of a bundle, written out piece by piece so the whole bundle never
+ * has to be held in memory.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public interface BundleContent {
+
+  /**
+   * Write the bundle to [out].
+   * 
+   * @param out
+   * @throws IOException
+   */
+  void writeTo(BundleFileWriter out) throws IOException;
+}
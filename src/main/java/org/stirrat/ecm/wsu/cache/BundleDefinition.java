@@ -0,0 +1,97 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a bundle is built from: its group, type, compress flag and ordered
+ * items. Enough to build the bundle again, e.g. when warming the cache after
+ * a restart.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleDefinition {
+
+  private final String group;
+
+  private final int type;
+
+  private final boolean compress;
+
+  private final List<String> items;
+
+  public BundleDefinition(String group, int type, boolean compress, List<String> items) {
+    this.group = group;
+    this.type = type;
+    this.compress = compress;
+    this.items = Collections.unmodifiableList(new ArrayList<String>(items));
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public boolean isCompress() {
+    return compress;
+  }
+
+  public List<String> getItems() {
+    return items;
+  }
+
+  /**
+   * Serialize as a single tab separated line: group, type, compress and the
+   * comma separated items.
+   * 
+   * @return
+   */
+  public String toLine() {
+    StringBuilder line = new StringBuilder(group);
+
+    line.append('\t').append(type).append('\t').append(compress).append('\t');
+
+    for (int i = 0; i < items.size(); i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      line.append(items.get(i));
+    }
+
+    return line.toString();
+  }
+
+  /**
+   * Parse a line written by {@link #toLine()}.
+   * 
+   * @param line
+   * @return the definition or null if the line is not valid
+   */
+  public static BundleDefinition parse(String line) {
+    String[] fields = line.split("\t", -1);
+
+    if (fields.length != 4 || fields[3].length() == 0) {
+      return null;
+    }
+
+    int type;
+
+    try {
+      type = Integer.parseInt(fields[1]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    List<String> items = new ArrayList<String>();
+
+    for (String item : fields[3].split(",")) {
+      items.add(item);
+    }
+
+    return new BundleDefinition(fields[0], type, Boolean.valueOf(fields[2]), items);
+  }
+}
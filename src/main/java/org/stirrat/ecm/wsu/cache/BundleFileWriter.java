@@ -0,0 +1,256 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes a bundle to a temporary file next to its target and moves it into
+ * place once it is complete and synced to disk, so readers only ever see a
+ * whole bundle.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleFileWriter {
+
+  /**
+   * Suffix of in-progress files.
+   */
+  public static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Direct buffers are expensive to allocate, keep one per thread.
+   */
+  private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+  };
+
+  private final File target;
+
+  private final File temp;
+
+  private final FileOutputStream out;
+
+  private final FileChannel channel;
+
+  private final CharsetEncoder encoder;
+
+  /**
+   * Opens a temporary file in the target's directory.
+   * 
+   * @param target
+   * @param charset
+   * @throws IOException
+   */
+  public BundleFileWriter(File target, Charset charset) throws IOException {
+    this.target = target;
+    this.temp = File.createTempFile(target.getName() + ".", TEMP_SUFFIX, target.getParentFile());
+    this.out = new FileOutputStream(temp);
+    this.channel = out.getChannel();
+    this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * Encode and write [content].
+   * 
+   * @param content
+   * @throws IOException
+   */
+  public void write(CharSequence content) throws IOException {
+    ByteBuffer buffer = buffers.get();
+    CharBuffer in = CharBuffer.wrap(content);
+
+    encoder.reset();
+    buffer.clear();
+
+    CoderResult result;
+
+    do {
+      result = encoder.encode(in, buffer, true);
+      drain(buffer);
+    } while (result.isOverflow());
+
+    do {
+      result = encoder.flush(buffer);
+      drain(buffer);
+    } while (result.isOverflow());
+  }
+
+  /**
+   * Write the raw bytes remaining in [content].
+   * 
+   * @param content
+   * @throws IOException
+   */
+  public void write(ByteBuffer content) throws IOException {
+    while (content.hasRemaining()) {
+      channel.write(content);
+    }
+  }
+
+  /**
+   * Copy the raw bytes of [source] into the bundle, letting the operating
+   * system move the data where it can.
+   * 
+   * @param source
+   * @throws IOException
+   */
+  public void transferFrom(File source) throws IOException {
+    transferFrom(source, 0, -1);
+  }
+
+  /**
+   * Copy [length] raw bytes of [source], starting at [offset], into the
+   * bundle.
+   * 
+   * @param source
+   * @param offset
+   * @param length
+   *          number of bytes, or -1 for the rest of the file
+   * @throws IOException
+   */
+  public void transferFrom(File source, long offset, long length) throws IOException {
+    FileInputStream in = new FileInputStream(source);
+
+    try {
+      FileChannel sourceChannel = in.getChannel();
+      long end = length < 0 ? sourceChannel.size() : offset + length;
+      long position = offset;
+
+      if (end > sourceChannel.size()) {
+        throw new IOException("Cannot read past the end of " + source);
+      }
+
+      while (position < end) {
+        position += sourceChannel.transferTo(position, end - position, channel);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the number of bytes written so far
+   * @throws IOException
+   */
+  public long position() throws IOException {
+    return channel.position();
+  }
+
+  /**
+   * Sync the temporary file to disk and move it over the target.
+   * 
+   * @throws IOException
+   */
+  public void commit() throws IOException {
+    commit(target);
+  }
+
+  /**
+   * Sync the temporary file to disk and move it over [destination] rather
+   * than the original target, for names which depend on the content.
+   * 
+   * @param destination
+   * @throws IOException
+   */
+  public void commit(File destination) throws IOException {
+    close();
+    moveIntoPlace(temp, destination);
+  }
+
+  /**
+   * Sync the temporary file to disk and close it, after which its contents
+   * may be read back from {@link #getTempFile()} before committing.
+   * 
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (!channel.isOpen()) {
+      return;
+    }
+
+    try {
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return the temporary file being written
+   */
+  public File getTempFile() {
+    return temp;
+  }
+
+  /**
+   * Discard the temporary file, the target is left untouched.
+   */
+  public void abort() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      // nothing more we can do, the file is removed below
+    }
+    temp.delete();
+  }
+
+  /**
+   * @return a stream which writes raw bytes to the temporary file
+   */
+  public OutputStream getOutputStream() {
+    return out;
+  }
+
+  /**
+   * @return the underlying channel of the temporary file
+   */
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  private void drain(ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Rename [from] over [to]. The rename is atomic on POSIX filesystems; where
+   * the platform will not rename over an existing file the target is removed
+   * first.
+   * 
+   * @param from
+   * @param to
+   * @throws IOException
+   */
+  public static void moveIntoPlace(File from, File to) throws IOException {
+    if (from.renameTo(to)) {
+      return;
+    }
+
+    if (to.exists() && to.delete() && from.renameTo(to)) {
+      return;
+    }
+
+    from.delete();
+    throw new IOException("Unable to move " + from + " to " + to);
+  }
+}
@@ -0,0 +1,122 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Computes the key which identifies a bundle. The key covers the ordered item
+ * list, the type, the compress flag, the minifier settings and the settings
+ * sources are processed with, so bundles which differ in any of them never
+ * share a file.
+ * 
+ * Items are fed to the digest one at a time, each prefixed by its length, so
+ * no combined string is built and no two item lists can produce the same
+ * input.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleKey {
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Number of digest bytes used in the key.
+   */
+  private static final int KEY_BYTES = 16;
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-1 unavailable", e);
+      }
+    }
+  };
+
+  private BundleKey() {
+  }
+
+  /**
+   * @param items
+   *          the items in the order they are combined
+   * @param type
+   * @param compress
+   * @param minifier
+   *          identifies the minifier and its settings, ignored if not
+   *          compressing
+   * @return a 32 character hex key
+   */
+  public static String compute(List<String> items, int type, boolean compress, String minifier) {
+    return compute(items, type, compress, minifier, "");
+  }
+
+  /**
+   * @param items
+   *          the items in the order they are combined
+   * @param type
+   * @param compress
+   * @param minifier
+   *          identifies the minifier and its settings, ignored if not
+   *          compressing
+   * @param processing
+   *          identifies the settings sources are processed with (e.g. CSS
+   *          url rewriting), empty if they are combined as they are
+   * @return a 32 character hex key
+   */
+  public static String compute(List<String> items, int type, boolean compress, String minifier,
+      String processing) {
+    MessageDigest digest = digests.get();
+    digest.reset();
+
+    updateInt(digest, type);
+    digest.update((byte) (compress ? 1 : 0));
+
+    if (compress) {
+      update(digest, minifier);
+    }
+
+    // left out when empty, so keys of unprocessed bundles do not change
+    if (processing.length() > 0) {
+      update(digest, processing);
+    }
+
+    updateInt(digest, items.size());
+
+    for (String item : items) {
+      update(digest, item);
+    }
+
+    byte[] hash = digest.digest();
+
+    char[] key = new char[KEY_BYTES * 2];
+
+    for (int i = 0; i < KEY_BYTES; i++) {
+      key[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+      key[i * 2 + 1] = HEX[hash[i] & 0xF];
+    }
+
+    return new String(key);
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    int length = value.length();
+
+    updateInt(digest, length);
+
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      digest.update((byte) (c >> 8));
+      digest.update((byte) c);
+    }
+  }
+
+  private static void updateInt(MessageDigest digest, int value) {
+    digest.update((byte) (value >> 24));
+    digest.update((byte) (value >> 16));
+    digest.update((byte) (value >> 8));
+    digest.update((byte) value);
+  }
+}
@@ -0,0 +1,501 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory manifest of combined bundles. Maps a bundle key (group, type,
+ * compress flag and item list) to the cached file and a fingerprint of every
+ * source it was built from, so a cache hit never touches the filesystem.
+ * 
+ * Entries are revalidated against the filesystem on a background thread once
+ * they are older than the revalidation interval. The manifest is bounded and
+ * evicts the least recently used entry when full.
+ * 
+ * A reverse index maps the content ID of each item to the bundles which
+ * include it, so a checkin can invalidate exactly the affected bundles.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleManifest {
+
+  /**
+   * Fingerprint used for a source which does not exist.
+   */
+  public static final long MISSING = -1L;
+
+  private final Map<String, Entry> entries;
+
+  /**
+   * Content ID to the keys of bundles including it, guarded by [entries].
+   */
+  private final Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+
+  private final long revalidateInterval;
+
+  private final ExecutorService revalidator;
+
+  /**
+   * @param maxEntries
+   *          maximum number of bundles to track
+   * @param revalidateInterval
+   *          milliseconds before an entry is checked against the filesystem
+   *          again, 0 to never revalidate
+   */
+  public BundleManifest(final int maxEntries, long revalidateInterval) {
+    this.revalidateInterval = revalidateInterval;
+
+    this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, BundleManifest.Entry> eldest) {
+        if (size() > maxEntries) {
+          eldest.getValue().retire();
+          unindex(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    });
+
+    this.revalidator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "WSU manifest revalidator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  private void index(String key, Entry entry) {
+    for (String contentId : entry.contentIds) {
+      Set<String> keys = index.get(contentId);
+
+      if (keys == null) {
+        keys = new HashSet<String>();
+        index.put(contentId, keys);
+      }
+
+      keys.add(key);
+    }
+  }
+
+  private void unindex(String key, Entry entry) {
+    for (String contentId : entry.contentIds) {
+      Set<String> keys = index.get(contentId);
+
+      if (keys != null) {
+        keys.remove(key);
+
+        if (keys.isEmpty()) {
+          index.remove(contentId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Look up a bundle. Stale entries are still returned, and a background
+   * revalidation is scheduled for them.
+   * 
+   * @param key
+   * @return the entry or null if the bundle is unknown
+   */
+  public Entry get(String key) {
+    Entry entry = entries.get(key);
+
+    if (entry != null) {
+      revalidateIfDue(key, entry);
+    }
+
+    return entry;
+  }
+
+  /**
+   * Check a bundle which was looked up earlier, without looking it up again.
+   * As with {@link #get(String)}, a background revalidation is scheduled if
+   * it is due.
+   * 
+   * @param entry
+   * @return false once the entry has been invalidated, evicted or replaced
+   */
+  public boolean touch(Entry entry) {
+    if (!entry.isCurrent()) {
+      return false;
+    }
+
+    revalidateIfDue(entry.key, entry);
+
+    return true;
+  }
+
+  /**
+   * Record a bundle.
+   * 
+   * @param key
+   * @param entry
+   */
+  public void put(String key, Entry entry) {
+    synchronized (entries) {
+      entry.key = key;
+
+      Entry previous = entries.put(key, entry);
+
+      if (previous != null && previous != entry) {
+        previous.retire();
+        unindex(key, previous);
+      }
+
+      index(key, entry);
+    }
+  }
+
+  /**
+   * Forget a bundle, the next request will check the filesystem again.
+   * 
+   * @param key
+   */
+  public void invalidate(String key) {
+    synchronized (entries) {
+      Entry entry = entries.remove(key);
+
+      if (entry != null) {
+        entry.retire();
+        unindex(key, entry);
+        SystemUtils.trace("wsu", "manifest: invalidated: " + key);
+      }
+    }
+  }
+
+  /**
+   * Forget every bundle which includes the content item [contentId].
+   * 
+   * @param contentId
+   * @return the definitions of the bundles forgotten
+   */
+  public List<BundleDefinition> invalidateContent(String contentId) {
+    List<BundleDefinition> invalidated = new ArrayList<BundleDefinition>();
+
+    synchronized (entries) {
+      Set<String> keys = index.get(contentId.toLowerCase());
+
+      if (keys == null) {
+        return invalidated;
+      }
+
+      for (String key : new ArrayList<String>(keys)) {
+        Entry entry = entries.get(key);
+
+        if (entry != null) {
+          invalidated.add(entry.getDefinition());
+          invalidate(key);
+        }
+      }
+    }
+
+    return invalidated;
+  }
+
+  /**
+   * Forget every bundle stored in [bundleFile], e.g. after it was removed
+   * from the cache directory.
+   * 
+   * @param bundleFile
+   */
+  public void invalidateBundle(File bundleFile) {
+    String name = bundleFile.getName();
+
+    synchronized (entries) {
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> mapping = it.next();
+        Entry entry = mapping.getValue();
+
+        if (entry.name.equals(name)) {
+          entry.retire();
+          it.remove();
+          unindex(mapping.getKey(), entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget all bundles.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      for (Entry entry : entries.values()) {
+        entry.retire();
+      }
+      entries.clear();
+      index.clear();
+    }
+    SystemUtils.trace("wsu", "manifest: invalidated all entries");
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return a snapshot of the entries, least recently used first
+   */
+  public List<Entry> getEntries() {
+    synchronized (entries) {
+      return new ArrayList<Entry>(entries.values());
+    }
+  }
+
+  private void revalidateIfDue(String key, Entry entry) {
+    if (revalidateInterval > 0 && System.currentTimeMillis() - entry.validatedAt > revalidateInterval) {
+      scheduleRevalidation(key, entry);
+    }
+  }
+
+  private void scheduleRevalidation(final String key, final Entry entry) {
+    if (!entry.revalidating.compareAndSet(false, true)) {
+      return;
+    }
+
+    revalidator.execute(new Runnable() {
+      public void run() {
+        try {
+          if (entry.isStillValid()) {
+            entry.validatedAt = System.currentTimeMillis();
+          } else {
+            // only remove the entry we checked, it may have been rebuilt since
+            synchronized (entries) {
+              if (entries.get(key) == entry) {
+                invalidate(key);
+              }
+            }
+          }
+        } finally {
+          entry.revalidating.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Fingerprint a file by its modification time and length, and those of
+   * its {@link SourceDependencies}.
+   * 
+   * @param file
+   * @return the fingerprint or {@link #MISSING}
+   */
+  public static long fingerprint(File file) {
+    if (!file.exists()) {
+      return MISSING;
+    }
+
+    long fingerprint = file.lastModified() * 31 + file.length();
+
+    for (File dependency : SourceDependencies.get(file)) {
+      fingerprint = fingerprint * 31 + (dependency.exists() ? dependency.lastModified() * 31 + dependency.length()
+          : MISSING);
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Fingerprint each of [files].
+   * 
+   * @param files
+   * @return the fingerprints, in the order of [files]
+   */
+  public static long[] fingerprint(List<File> files) {
+    long[] fingerprints = new long[files.size()];
+
+    for (int i = 0; i < fingerprints.length; i++) {
+      fingerprints[i] = fingerprint(files.get(i));
+    }
+
+    return fingerprints;
+  }
+
+  /**
+   * Get the content ID a weblayout URL was published from, e.g.
+   * /cs/groups/public/documents/js_main~2.js is js_main.
+   * 
+   * @param item
+   * @return the lower case content ID
+   */
+  public static String getContentId(String item) {
+    int end = item.indexOf('?');
+
+    if (end == -1) {
+      end = item.length();
+    }
+
+    int start = item.lastIndexOf('/', end - 1) + 1;
+
+    String name = item.substring(start, end);
+
+    int extension = name.lastIndexOf('.');
+
+    if (extension > 0) {
+      name = name.substring(0, extension);
+    }
+
+    int revision = name.indexOf('~');
+
+    if (revision > 0) {
+      name = name.substring(0, revision);
+    }
+
+    return name.toLowerCase();
+  }
+
+  /**
+   * A cached bundle and the state of its sources when it was built.
+   */
+  public static class Entry {
+    private final String filename;
+
+    private final String name;
+
+    private final BundleStore store;
+
+    private final BundleDefinition definition;
+
+    private final Set<String> contentIds = new HashSet<String>();
+
+    private final List<File> sources;
+
+    private final long[] fingerprints;
+
+    private final long length;
+
+    private volatile String content;
+
+    private volatile String key;
+
+    private volatile long validatedAt;
+
+    private volatile boolean current = true;
+
+    private final AtomicBoolean revalidating = new AtomicBoolean(false);
+
+    /**
+     * @param definition
+     *          what the bundle is built from
+     * @param filename
+     *          bundle path relative to the weblayout root
+     * @param store
+     *          where the bundle is kept
+     * @param sources
+     *          source files on disk
+     * @param fingerprints
+     *          fingerprints of the sources, taken before the bundle was built
+     *          so changes made during the build are picked up by the next
+     *          revalidation
+     */
+    public Entry(BundleDefinition definition, String filename, BundleStore store, List<File> sources,
+        long[] fingerprints) {
+      this.definition = definition;
+      this.filename = filename;
+
+      for (String item : definition.getItems()) {
+        contentIds.add(getContentId(item));
+      }
+
+      // includes sources the items pulled in, such as imported stylesheets
+      for (File source : sources) {
+        contentIds.add(getContentId(source.getName()));
+      }
+
+      this.name = filename.substring(filename.lastIndexOf('/') + 1);
+      this.store = store;
+      this.sources = new ArrayList<File>(sources);
+      this.fingerprints = fingerprints;
+      this.length = store.length(name);
+      this.validatedAt = System.currentTimeMillis();
+    }
+
+    public String getFilename() {
+      return filename;
+    }
+
+    public BundleDefinition getDefinition() {
+      return definition;
+    }
+
+    /**
+     * @return the size of the bundle in bytes when it was built
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return the contents of the bundle held in memory, or null if they have
+     *         not been loaded
+     */
+    public String getContent() {
+      return content;
+    }
+
+    /**
+     * Hold the contents of the bundle in memory for as long as the entry is
+     * in the manifest, e.g. for inlining into pages.
+     * 
+     * @param content
+     */
+    public void setContent(String content) {
+      this.content = content;
+    }
+
+    /**
+     * @return the bundle's name within the cache directory
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * False once the entry has been invalidated, evicted or replaced.
+     */
+    public boolean isCurrent() {
+      return current;
+    }
+
+    void retire() {
+      current = false;
+    }
+
+    boolean isStillValid() {
+      if (store.lastModified(name) == 0) {
+        SystemUtils.trace("wsu", "manifest: MISS: bundle removed: " + name);
+        return false;
+      }
+
+      for (int i = 0; i < fingerprints.length; i++) {
+        if (fingerprint(sources.get(i)) != fingerprints[i]) {
+          SystemUtils.trace("wsu", "manifest: MISS: source changed: " + sources.get(i));
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where each source's output sits within a built bundle. When the bundle is
+ * rebuilt, the output of sources which have not changed is copied straight
+ * from the previous bundle and only changed sources are read and minified
+ * again.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleSegments {
+
+  private final BundleStore store;
+
+  private final String name;
+
+  private final long bundleLength;
+
+  private final long bundleModified;
+
+  private final Map<String, Segment> segments = new HashMap<String, Segment>();
+
+  /**
+   * @param store
+   *          where the bundle is kept
+   * @param name
+   *          the bundle, as written
+   * @param segments
+   *          the segments of the bundle
+   */
+  public BundleSegments(BundleStore store, String name, List<Segment> segments) {
+    this.store = store;
+    this.name = name;
+    this.bundleLength = store.length(name);
+    this.bundleModified = store.lastModified(name);
+
+    for (Segment segment : segments) {
+      this.segments.put(segment.source, segment);
+    }
+  }
+
+  /**
+   * Whether the bundle is still stored as it was written, so its segments
+   * can be copied.
+   * 
+   * @return
+   */
+  public boolean isIntact() {
+    return store.length(name) == bundleLength && store.lastModified(name) == bundleModified;
+  }
+
+  /**
+   * Read the bundle, to copy its segments.
+   * 
+   * @return the contents, or null if the bundle has changed since it was
+   *         written
+   * @throws IOException
+   */
+  public ByteBuffer read() throws IOException {
+    if (!isIntact()) {
+      return null;
+    }
+
+    ByteBuffer content = store.read(name);
+
+    return content != null && content.remaining() == bundleLength ? content : null;
+  }
+
+  /**
+   * Find the segment for [source] if it was built from the same version.
+   * 
+   * @param source
+   * @param fingerprint
+   *          current fingerprint of the source
+   * @return the segment or null if the source must be processed again
+   */
+  public Segment find(String source, long fingerprint) {
+    Segment segment = segments.get(source);
+
+    if (segment == null || fingerprint == BundleManifest.MISSING || segment.fingerprint != fingerprint) {
+      return null;
+    }
+
+    return segment;
+  }
+
+  /**
+   * The output of one source within a bundle.
+   */
+  public static class Segment {
+    private final String source;
+
+    private final long fingerprint;
+
+    private final long offset;
+
+    private final long length;
+
+    private final BundleSourceMap.Section section;
+
+    /**
+     * @param source
+     *          path of the source
+     * @param fingerprint
+     *          fingerprint of the source the output was built from
+     * @param offset
+     *          byte offset of the output in the bundle
+     * @param length
+     *          byte length of the output
+     * @param section
+     *          source map of the output, or null if it was not mapped
+     */
+    public Segment(String source, long fingerprint, long offset, long length, BundleSourceMap.Section section) {
+      this.source = source;
+      this.fingerprint = fingerprint;
+      this.offset = offset;
+      this.length = length;
+      this.section = section;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public BundleSourceMap.Section getSection() {
+      return section;
+    }
+  }
+}
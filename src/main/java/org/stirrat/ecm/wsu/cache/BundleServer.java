@@ -0,0 +1,466 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves bundles from memory, for clients which cannot read the weblayout
+ * directly. Recently served bundles and their precompressed (.gz) copies are
+ * held in memory up to a total size, larger bundles are read from the store
+ * on each request. Only the ETags of larger bundles are kept, so they are not
+ * hashed again for every request.
+ * 
+ * Responses carry a strong ETag per representation, answer If-None-Match
+ * with 304, choose the precompressed copy from Accept-Encoding and honour a
+ * single byte range.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleServer {
+
+  /**
+   * Number of ETags of bundles too large to hold in memory to keep.
+   */
+  private static final int MAX_ETAGS = 1024;
+
+  private final BundleStore store;
+
+  private final long maxBytes;
+
+  private long bytes;
+
+  private final LinkedHashMap<String, Loaded> loaded = new LinkedHashMap<String, Loaded>(16, 0.75f, true);
+
+  private final LinkedHashMap<String, Loaded> etags = new LinkedHashMap<String, Loaded>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+      return size() > MAX_ETAGS;
+    }
+  };
+
+  /**
+   * @param store
+   *          where the bundles are kept
+   * @param maxBytes
+   *          total size of the bundles to hold in memory
+   */
+  public BundleServer(BundleStore store, long maxBytes) {
+    this.store = store;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param name
+   * @return true if [name] may be the name of a bundle or its source map in
+   *         the cache directory
+   */
+  public static boolean isBundleName(String name) {
+    return name != null && name.matches("[A-Za-z0-9_\\-]+(\\.[A-Za-z0-9]+)?\\.(js|css)(\\.map)?");
+  }
+
+  /**
+   * Answer a request for the bundle [name].
+   * 
+   * @param name
+   *          file name of the bundle
+   * @param ifNoneMatch
+   *          If-None-Match request header, or null
+   * @param acceptEncoding
+   *          Accept-Encoding request header, or null
+   * @param range
+   *          Range request header, or null
+   * @param ifRange
+   *          If-Range request header, or null
+   * @return the response, or null if there is no such bundle
+   * @throws IOException
+   */
+  public Response serve(String name, String ifNoneMatch, String acceptEncoding, String range, String ifRange)
+      throws IOException {
+    if (!isBundleName(name)) {
+      return null;
+    }
+
+    Representation representation = null;
+
+    // the precompressed copy is written after the bundle, skip it until then
+    if (acceptsGzip(acceptEncoding)
+        && store.lastModified(name + ".gz") >= store.lastModified(name)) {
+      representation = get(name + ".gz");
+    }
+
+    boolean gzip = representation != null;
+
+    if (!gzip) {
+      representation = get(name);
+    }
+
+    if (representation == null) {
+      return null;
+    }
+
+    Response response = new Response();
+
+    response.headers.put("ETag", representation.etag);
+    response.headers.put("Vary", "Accept-Encoding");
+
+    if (gzip) {
+      response.headers.put("Content-Encoding", "gzip");
+    }
+
+    if (ifNoneMatch != null && matches(ifNoneMatch, representation.etag)) {
+      response.status = 304;
+      return response;
+    }
+
+    ByteBuffer content = representation.content.duplicate();
+    int length = content.remaining();
+
+    response.headers.put("Accept-Ranges", "bytes");
+
+    long[] byteRange = null;
+
+    // a stale If-Range asks for the whole bundle
+    if (range != null && (ifRange == null || ifRange.trim().equals(representation.etag))) {
+      byteRange = parseRange(range, length);
+    }
+
+    if (byteRange == null) {
+      response.status = 200;
+    } else if (byteRange[0] < 0) {
+      response.status = 416;
+      response.headers.put("Content-Range", "bytes */" + length);
+      return response;
+    } else {
+      response.status = 206;
+      response.headers.put("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length);
+
+      content.position((int) byteRange[0]);
+      content.limit((int) byteRange[1] + 1);
+    }
+
+    response.body = content.slice();
+
+    return response;
+  }
+
+  /**
+   * Drop the copies held in memory.
+   */
+  public synchronized void clear() {
+    loaded.clear();
+    etags.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Returns a representation of a bundle, loading it if it is not in memory
+   * or has changed on disk.
+   * 
+   * @param filename
+   * @return the representation, or null if there is no such file
+   * @throws IOException
+   */
+  private Representation get(String filename) throws IOException {
+    long lastModified = store.lastModified(filename);
+    long length = store.length(filename);
+
+    if (lastModified == 0) {
+      forget(filename);
+      return null;
+    }
+
+    Loaded copy;
+
+    synchronized (this) {
+      copy = loaded.get(filename);
+    }
+
+    if (copy != null && copy.lastModified == lastModified && copy.length == length) {
+      return copy.representation;
+    }
+
+    if (length > maxBytes) {
+      return loadLarge(filename, lastModified, length);
+    }
+
+    Representation representation = load(filename);
+
+    if (representation == null) {
+      return null;
+    }
+
+    synchronized (this) {
+      Loaded previous = loaded.put(filename, new Loaded(representation, lastModified, length));
+
+      bytes += length - (previous != null ? previous.length : 0);
+
+      Iterator<Loaded> it = loaded.values().iterator();
+
+      while (bytes > maxBytes && it.hasNext()) {
+        bytes -= it.next().length;
+        it.remove();
+      }
+    }
+
+    return representation;
+  }
+
+  /**
+   * Read a bundle too large to hold in memory, reusing its ETag if it has not
+   * changed since it was last served.
+   * 
+   * @param filename
+   * @param lastModified
+   * @param length
+   * @return the representation, or null if there is no such file
+   * @throws IOException
+   */
+  private Representation loadLarge(String filename, long lastModified, long length) throws IOException {
+    ByteBuffer content = store.read(filename);
+
+    if (content == null) {
+      return null;
+    }
+
+    Loaded known;
+
+    synchronized (this) {
+      known = etags.get(filename);
+    }
+
+    if (known != null && known.lastModified == lastModified && known.length == length) {
+      return new Representation(content.asReadOnlyBuffer(), known.representation.etag);
+    }
+
+    SystemUtils.trace("wsu", "BundleServer: hash: " + filename);
+
+    Representation representation = new Representation(content.asReadOnlyBuffer(), getETag(content.duplicate()));
+
+    synchronized (this) {
+      // only the ETag is kept, not the content
+      etags.put(filename, new Loaded(new Representation(null, representation.etag), lastModified, length));
+    }
+
+    return representation;
+  }
+
+  private synchronized void forget(String filename) {
+    etags.remove(filename);
+
+    Loaded previous = loaded.remove(filename);
+
+    if (previous != null) {
+      bytes -= previous.length;
+    }
+  }
+
+  private Representation load(String filename) throws IOException {
+    SystemUtils.trace("wsu", "BundleServer: load: " + filename);
+
+    ByteBuffer content = store.read(filename);
+
+    if (content == null) {
+      return null;
+    }
+
+    // held in memory, rather than a view of a file which may be replaced
+    if (content.remaining() <= maxBytes && content.isDirect()) {
+      ByteBuffer copy = ByteBuffer.allocate(content.remaining());
+      copy.put(content.duplicate()).flip();
+      content = copy;
+    }
+
+    return new Representation(content.asReadOnlyBuffer(), getETag(content.duplicate()));
+  }
+
+  private static String getETag(ByteBuffer content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(content);
+
+      return "\"" + String.format("%040x", new BigInteger(1, digest.digest())).substring(0, 32) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param ifNoneMatch
+   * @param etag
+   * @return true if [etag] is one of the tags in [ifNoneMatch]
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+
+      // weak comparison, as for If-None-Match
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param acceptEncoding
+   * @return true if gzip is acceptable to the client
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+
+    Boolean gzip = null;
+    boolean any = false;
+
+    for (String coding : acceptEncoding.toLowerCase().split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      boolean accepted = true;
+
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+
+        if (parameter.startsWith("q=")) {
+          try {
+            accepted = Float.parseFloat(parameter.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            accepted = false;
+          }
+        }
+      }
+
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        gzip = accepted;
+      } else if (name.equals("*")) {
+        any = accepted;
+      }
+    }
+
+    return gzip != null ? gzip : any;
+  }
+
+  /**
+   * Parse a Range header for a single range of bytes.
+   * 
+   * @param range
+   * @param length
+   *          length of the representation
+   * @return the first and last byte, {-1, -1} if the range cannot be
+   *         satisfied, or null to ignore the header
+   */
+  static long[] parseRange(String range, long length) {
+    range = range.trim();
+
+    if (!range.toLowerCase().startsWith("bytes=") || range.indexOf(',') > -1) {
+      return null;
+    }
+
+    String spec = range.substring(6).trim();
+    int dash = spec.indexOf('-');
+
+    if (dash == -1) {
+      return null;
+    }
+
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+
+      long start;
+      long end;
+
+      if (first.length() == 0) {
+        // the final bytes
+        long suffix = Long.parseLong(last);
+
+        if (suffix <= 0) {
+          return new long[] { -1, -1 };
+        }
+
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+
+        if (end < start) {
+          return start >= length ? new long[] { -1, -1 } : null;
+        }
+      }
+
+      if (start >= length) {
+        return new long[] { -1, -1 };
+      }
+
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A response to send, its body is only set for 200 and 206.
+   */
+  public static class Response {
+    private int status;
+
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    private ByteBuffer body;
+
+    public int getStatus() {
+      return status;
+    }
+
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    /**
+     * @return a read only view of the bytes to send, or null
+     */
+    public ByteBuffer getBody() {
+      return body;
+    }
+  }
+
+  private static class Representation {
+    private final ByteBuffer content;
+
+    private final String etag;
+
+    private Representation(ByteBuffer content, String etag) {
+      this.content = content;
+      this.etag = etag;
+    }
+  }
+
+  private static class Loaded {
+    private final Representation representation;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private Loaded(Representation representation, long lastModified, long length) {
+      this.representation = representation;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Source map of a bundle, as a version 3 index map with a section for the
+ * output of each source. Each section is placed at the line and column where
+ * the source's output starts in the bundle, so sections can be copied along
+ * with the output when a bundle is rebuilt.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleSourceMap {
+
+  private final List<String> sections = new ArrayList<String>();
+
+  private int line = 0;
+
+  private int column = 0;
+
+  /**
+   * Add the section of a source's output at the current position and move
+   * past it.
+   * 
+   * @param section
+   */
+  public void add(Section section) {
+    sections.add("{\"offset\":{\"line\":" + line + ",\"column\":" + column + "},\"map\":" + section.map + "}");
+    advance(section.lines, section.lastLineLength);
+  }
+
+  /**
+   * Move past output which has no source, such as error comments.
+   * 
+   * @param content
+   */
+  public void skip(CharSequence content) {
+    int[] extent = measure(content);
+    advance(extent[0], extent[1]);
+  }
+
+  private void advance(int lines, int lastLineLength) {
+    if (lines == 0) {
+      column += lastLineLength;
+    } else {
+      line += lines;
+      column = lastLineLength;
+    }
+  }
+
+  /**
+   * @param file
+   *          name of the bundle
+   * @return the index map
+   */
+  public String toJson(String file) {
+    StringBuilder json = new StringBuilder();
+
+    json.append("{\"version\":3,\"file\":").append(quote(file)).append(",\"sections\":[");
+
+    for (int i = 0; i < sections.size(); i++) {
+      if (i > 0) {
+        json.append(",\n");
+      }
+      json.append(sections.get(i));
+    }
+
+    return json.append("]}\n").toString();
+  }
+
+  /**
+   * The line breaks in [content] and the length of its last line.
+   * 
+   * @param content
+   * @return
+   */
+  public static int[] measure(CharSequence content) {
+    int lines = 0;
+    int lastLineStart = 0;
+
+    for (int i = 0; i < content.length(); i++) {
+      if (content.charAt(i) == '\n') {
+        lines++;
+        lastLineStart = i + 1;
+      }
+    }
+
+    return new int[] { lines, content.length() - lastLineStart };
+  }
+
+  /**
+   * Section for output copied unchanged from [sourceUrl], mapping each line
+   * to the same line of the source.
+   * 
+   * @param sourceUrl
+   * @param content
+   * @return
+   */
+  public static Section identity(String sourceUrl, CharSequence content) {
+    int[] extent = measure(content);
+    int lineCount = extent[0] + (extent[1] > 0 ? 1 : 0);
+
+    StringBuilder mappings = new StringBuilder();
+
+    for (int i = 0; i < lineCount; i++) {
+      // column 0 maps to column 0 of the next source line
+      mappings.append(i == 0 ? "AAAA" : ";AACA");
+    }
+
+    return new Section(map(sourceUrl, mappings.toString()), extent[0], extent[1]);
+  }
+
+  /**
+   * Section for output minified from [sourceUrl] by an engine without source
+   * maps. Only the start of the output is mapped, which still attributes
+   * errors to the right file.
+   * 
+   * @param sourceUrl
+   * @param content
+   * @return
+   */
+  public static Section whole(String sourceUrl, CharSequence content) {
+    int[] extent = measure(content);
+    return new Section(map(sourceUrl, "AAAA"), extent[0], extent[1]);
+  }
+
+  /**
+   * Section for output with a source map from the minifier.
+   * 
+   * @param map
+   *          version 3 source map of [content]
+   * @param content
+   * @return
+   */
+  public static Section mapped(String map, CharSequence content) {
+    int[] extent = measure(content);
+    return new Section(map.trim(), extent[0], extent[1]);
+  }
+
+  private static String map(String sourceUrl, String mappings) {
+    return "{\"version\":3,\"sources\":[" + quote(sourceUrl) + "],\"names\":[],\"mappings\":\"" + mappings + "\"}";
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 2);
+
+    quoted.append('"');
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+
+    return quoted.append('"').toString();
+  }
+
+  /**
+   * The source map of one source's output and the extent of that output.
+   */
+  public static class Section {
+    private final String map;
+
+    private final int lines;
+
+    private final int lastLineLength;
+
+    /**
+     * @param map
+     *          version 3 source map of the output
+     * @param lines
+     *          line breaks in the output
+     * @param lastLineLength
+     *          characters after the last line break
+     */
+    public Section(String map, int lines, int lastLineLength) {
+      this.map = map;
+      this.lines = lines;
+      this.lastLineLength = lastLineLength;
+    }
+  }
+}
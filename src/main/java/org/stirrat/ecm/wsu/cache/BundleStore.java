@@ -0,0 +1,75 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Where built bundles and the files which belong to them (.gz, .map) are
+ * kept, by their name within the cache directory. Bundles are written to a
+ * temporary file in the cache directory first and then handed to the store.
+ * 
+ * Implementations are shared between requests and build threads, so must be
+ * thread safe.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public interface BundleStore {
+
+  /**
+   * @param name
+   * @return when [name] was stored, or 0 if it is not in the store
+   */
+  long lastModified(String name);
+
+  /**
+   * @param name
+   * @return the size of [name] in bytes, or 0 if it is not in the store
+   */
+  long length(String name);
+
+  /**
+   * Store the completed [file] as [name], replacing any previous version.
+   * The file is moved or copied into the store and does not exist
+   * afterwards.
+   * 
+   * @param name
+   * @param file
+   * @throws IOException
+   */
+  void put(String name, File file) throws IOException;
+
+  /**
+   * Read [name].
+   * 
+   * @param name
+   * @return the contents, which may be a read only mapped view, or null if
+   *         [name] is not in the store
+   * @throws IOException
+   */
+  ByteBuffer read(String name) throws IOException;
+
+  /**
+   * @param name
+   * @return true if [name] was removed
+   */
+  boolean remove(String name);
+
+  /**
+   * @return the names in the store
+   */
+  List<String> list();
+
+  /**
+   * @param name
+   * @return the file [name] is kept in, or null if the store does not keep
+   *         each name as a file in the weblayout
+   */
+  File getFile(String name);
+
+  /**
+   * Reclaim the space of removed and replaced names, if the store needs to.
+   */
+  void compact();
+}
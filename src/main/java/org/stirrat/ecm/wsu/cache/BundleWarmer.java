@@ -0,0 +1,212 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the definitions of recently used bundles and replays them after a
+ * restart, so bundles are rebuilt before the first visitors need them.
+ * 
+ * Warming runs on a background thread and pauses between bundles, so it can
+ * run while the server is starting without holding it up or competing hard
+ * with the first requests.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleWarmer {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File store;
+
+  private final int maxBundles;
+
+  private final long throttle;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Builds a bundle from its definition.
+   */
+  public interface Builder {
+    void build(BundleDefinition definition) throws Exception;
+  }
+
+  /**
+   * @param store
+   *          file the definitions are saved to
+   * @param maxBundles
+   *          maximum number of definitions to save
+   * @param throttle
+   *          milliseconds to wait between building bundles
+   */
+  public BundleWarmer(File store, int maxBundles, long throttle) {
+    this.store = store;
+    this.maxBundles = maxBundles;
+    this.throttle = throttle;
+  }
+
+  /**
+   * Save the definitions, merged with those already saved, keeping the last
+   * [maxBundles] of them. Merging keeps definitions which were saved before a
+   * restart but have not been used again yet.
+   * 
+   * @param definitions
+   *          least recently used first
+   */
+  public synchronized void save(List<BundleDefinition> definitions) {
+    Set<String> lines = new LinkedHashSet<String>();
+
+    for (BundleDefinition definition : load()) {
+      lines.add(definition.toLine());
+    }
+
+    for (BundleDefinition definition : definitions) {
+      String line = definition.toLine();
+
+      // move to the most recently used end
+      lines.remove(line);
+      lines.add(line);
+    }
+
+    int skip = Math.max(0, lines.size() - maxBundles);
+
+    StringBuilder content = new StringBuilder();
+
+    for (String line : lines) {
+      if (skip > 0) {
+        skip--;
+        continue;
+      }
+      content.append(line).append('\n');
+    }
+
+    BundleFileWriter out = null;
+
+    try {
+      store.getParentFile().mkdirs();
+
+      out = new BundleFileWriter(store, UTF8);
+      out.write(content);
+      out.commit();
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "warmer: failed to save: " + store + ": " + e.getMessage());
+      if (out != null) {
+        out.abort();
+      }
+    }
+  }
+
+  /**
+   * Load the saved definitions.
+   * 
+   * @return the definitions, least recently used first
+   */
+  public synchronized List<BundleDefinition> load() {
+    List<BundleDefinition> definitions = new ArrayList<BundleDefinition>();
+
+    if (!store.exists()) {
+      return definitions;
+    }
+
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(store), UTF8));
+
+      try {
+        String line;
+
+        while ((line = in.readLine()) != null) {
+          BundleDefinition definition = BundleDefinition.parse(line);
+
+          if (definition != null) {
+            definitions.add(definition);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "warmer: failed to load: " + store + ": " + e.getMessage());
+    }
+
+    return definitions;
+  }
+
+  /**
+   * Build the saved bundles on a background thread, most recently used
+   * first.
+   * 
+   * @param builder
+   */
+  public void warm(final Builder builder) {
+    Thread warmer = new Thread(new Runnable() {
+      public void run() {
+        List<BundleDefinition> definitions = load();
+
+        SystemUtils.trace("wsu", "warmer: warming " + definitions.size() + " bundles");
+
+        for (int i = definitions.size() - 1; i >= 0; i--) {
+          try {
+            builder.build(definitions.get(i));
+            Thread.sleep(throttle);
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            SystemUtils.trace("wsu", "warmer: failed to build bundle: " + e.getMessage());
+          }
+        }
+
+        SystemUtils.trace("wsu", "warmer: done");
+      }
+    }, "WSU bundle warmer");
+
+    warmer.setDaemon(true);
+    warmer.setPriority(Thread.MIN_PRIORITY);
+    warmer.start();
+  }
+
+  /**
+   * Save the definitions returned by [source] every [interval] milliseconds.
+   * 
+   * @param source
+   * @param interval
+   */
+  public synchronized void startSaving(final Callable<List<BundleDefinition>> source, long interval) {
+    if (scheduler != null || interval <= 0) {
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "WSU bundle warmer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          save(source.call());
+        } catch (Exception e) {
+          SystemUtils.trace("wsu", "warmer: failed to save: " + e.getMessage());
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+}
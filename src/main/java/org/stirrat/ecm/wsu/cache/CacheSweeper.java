@@ -0,0 +1,265 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the bundle cache bounded. A sweep removes abandoned temporary files,
+ * bundles which have not been used for longer than the maximum age, and then
+ * the least recently used bundles until the store is within its size and
+ * file count limits. The store is then compacted if it needs to be.
+ * 
+ * A bundle is "used" when it was last served, as recorded by
+ * {@link #recordServed(String)}, or when it was last written if it has not
+ * been served since startup. Precompressed siblings (.gz) and source maps
+ * (.map) are counted and removed with their bundle.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class CacheSweeper {
+
+  /**
+   * Suffixes of files which belong to a bundle.
+   */
+  private static final String[] SIBLING_SUFFIXES = { ".gz", ".map" };
+
+  private final File dir;
+
+  private final BundleStore store;
+
+  private final long maxBytes;
+
+  private final int maxFiles;
+
+  private final long maxAge;
+
+  private final long tempMaxAge;
+
+  private final ConcurrentMap<String, Long> lastServed = new ConcurrentHashMap<String, Long>();
+
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param dir
+   *          the cache directory, where temporary files are written
+   * @param store
+   *          where the bundles are kept
+   * @param maxBytes
+   *          maximum total size of the bundles, 0 for no limit
+   * @param maxFiles
+   *          maximum number of bundles, 0 for no limit
+   * @param maxAge
+   *          milliseconds a bundle may go unused, 0 for no limit
+   * @param tempMaxAge
+   *          milliseconds after which a temporary file is considered abandoned
+   */
+  public CacheSweeper(File dir, BundleStore store, long maxBytes, int maxFiles, long maxAge, long tempMaxAge) {
+    this.dir = dir;
+    this.store = store;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.maxAge = maxAge;
+    this.tempMaxAge = tempMaxAge;
+  }
+
+  /**
+   * Notified of each bundle removed by a sweep.
+   */
+  public interface Listener {
+    void bundleRemoved(File bundle);
+  }
+
+  public void addListener(Listener listener) {
+    synchronized (listeners) {
+      listeners.add(listener);
+    }
+  }
+
+  /**
+   * Record that a bundle was served.
+   * 
+   * @param name
+   *          the bundle's filename
+   */
+  public void recordServed(String name) {
+    lastServed.put(name, System.currentTimeMillis());
+  }
+
+  /**
+   * Sweep now and then every [interval] milliseconds on a background thread.
+   * 
+   * @param interval
+   *          0 to sweep only once
+   */
+  public synchronized void start(long interval) {
+    if (scheduler != null) {
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "WSU cache sweeper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    Runnable task = new Runnable() {
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          SystemUtils.trace("wsu", "sweep: failed: " + e.getMessage());
+        }
+      }
+    };
+
+    if (interval > 0) {
+      scheduler.scheduleWithFixedDelay(task, 0, interval, TimeUnit.MILLISECONDS);
+    } else {
+      scheduler.execute(task);
+    }
+  }
+
+  /**
+   * Run a sweep now.
+   */
+  public synchronized void sweep() {
+    File[] files = dir.listFiles();
+
+    if (files == null) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    int removedTemp = 0;
+
+    for (File file : files) {
+      if (file.getName().endsWith(BundleFileWriter.TEMP_SUFFIX)) {
+        if (now - file.lastModified() > tempMaxAge && file.delete()) {
+          removedTemp++;
+        }
+      }
+    }
+
+    Map<String, Bundle> bundles = new HashMap<String, Bundle>();
+
+    for (String name : store.list()) {
+      String bundleName = getBundleName(name);
+
+      Bundle bundle = bundles.get(bundleName);
+
+      if (bundle == null) {
+        bundle = new Bundle(new File(dir, bundleName));
+        bundles.put(bundleName, bundle);
+      }
+
+      bundle.names.add(name);
+      bundle.size += store.length(name);
+      bundle.lastUsed = Math.max(bundle.lastUsed, store.lastModified(name));
+    }
+
+    List<Bundle> byLastUsed = new ArrayList<Bundle>(bundles.values());
+    long totalSize = 0;
+
+    for (Bundle bundle : byLastUsed) {
+      Long served = lastServed.get(bundle.file.getName());
+
+      if (served != null) {
+        bundle.lastUsed = Math.max(bundle.lastUsed, served);
+      }
+
+      totalSize += bundle.size;
+    }
+
+    // least recently used first
+    Collections.sort(byLastUsed, new Comparator<Bundle>() {
+      public int compare(Bundle a, Bundle b) {
+        return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+      }
+    });
+
+    int count = byLastUsed.size();
+    int removed = 0;
+
+    for (Bundle bundle : byLastUsed) {
+      boolean expired = maxAge > 0 && now - bundle.lastUsed > maxAge;
+      boolean overSize = maxBytes > 0 && totalSize > maxBytes;
+      boolean overCount = maxFiles > 0 && count > maxFiles;
+
+      if (!expired && !overSize && !overCount) {
+        // the rest were used more recently
+        break;
+      }
+
+      remove(bundle);
+
+      totalSize -= bundle.size;
+      count--;
+      removed++;
+    }
+
+    SystemUtils.trace("wsu", "sweep: removed " + removed + " bundles and " + removedTemp + " temp files, "
+        + count + " bundles (" + totalSize + " bytes) remain");
+
+    store.compact();
+  }
+
+  private void remove(Bundle bundle) {
+    for (String name : bundle.names) {
+      store.remove(name);
+    }
+
+    lastServed.remove(bundle.file.getName());
+
+    synchronized (listeners) {
+      for (Listener listener : listeners) {
+        listener.bundleRemoved(bundle.file);
+      }
+    }
+  }
+
+  /**
+   * Strip sibling suffixes from a filename.
+   * 
+   * @param name
+   * @return
+   */
+  private static String getBundleName(String name) {
+    for (String suffix : SIBLING_SUFFIXES) {
+      if (name.endsWith(suffix)) {
+        return name.substring(0, name.length() - suffix.length());
+      }
+    }
+    return name;
+  }
+
+  private static class Bundle {
+    private final File file;
+
+    private final List<String> names = new ArrayList<String>(2);
+
+    private long size;
+
+    private long lastUsed;
+
+    private Bundle(File file) {
+      this.file = file;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps each bundle as a file of its own in the cache directory, where the
+ * web server can serve it directly. Only files named like bundles are listed,
+ * so other files placed in the directory are never swept.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class FileBundleStore implements BundleStore {
+
+  /**
+   * group_KEY[_c][.hash].(js|css)[.gz|.map]
+   */
+  private static final Pattern BUNDLE_NAME = Pattern
+      .compile(".+_[0-9A-F]{32}(_c)?(\\.[0-9A-Za-z]+)?\\.(js|css)(\\.gz|\\.map)?");
+
+  private final File dir;
+
+  /**
+   * @param dir
+   *          the cache directory
+   */
+  public FileBundleStore(File dir) {
+    this.dir = dir;
+  }
+
+  public long lastModified(String name) {
+    return new File(dir, name).lastModified();
+  }
+
+  public long length(String name) {
+    return new File(dir, name).length();
+  }
+
+  public void put(String name, File file) throws IOException {
+    BundleFileWriter.moveIntoPlace(file, new File(dir, name));
+  }
+
+  public ByteBuffer read(String name) throws IOException {
+    File file = new File(dir, name);
+
+    if (!file.isFile()) {
+      return null;
+    }
+
+    FileInputStream in = new FileInputStream(file);
+
+    try {
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+  }
+
+  public boolean remove(String name) {
+    return new File(dir, name).delete();
+  }
+
+  public List<String> list() {
+    List<String> names = new ArrayList<String>();
+    File[] files = dir.listFiles();
+
+    if (files == null) {
+      return names;
+    }
+
+    for (File file : files) {
+      if (file.isFile() && isBundleName(file.getName())) {
+        names.add(file.getName());
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * @param name
+   * @return true if [name] is named like a bundle, or the .gz or .map of one
+   */
+  static boolean isBundleName(String name) {
+    return BUNDLE_NAME.matcher(name).matches();
+  }
+
+  public File getFile(String name) {
+    return new File(dir, name);
+  }
+
+  public void compact() {
+    // removed files free their space immediately
+  }
+}
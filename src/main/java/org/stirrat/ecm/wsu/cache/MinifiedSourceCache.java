@@ -0,0 +1,79 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.stirrat.ecm.wsu.minify.MinifiedSource;
+
+/**
+ * Minified output of individual source files, shared by every bundle which
+ * includes them. Entries are keyed by source and validated against the
+ * source's fingerprint, so an edited file is minified again while the other
+ * files of its bundles are reused.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class MinifiedSourceCache {
+
+  private final Map<String, Cached> entries;
+
+  /**
+   * @param maxEntries
+   *          maximum number of sources to keep, least recently used sources
+   *          are dropped first
+   */
+  public MinifiedSourceCache(final int maxEntries) {
+    entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   *          identifies the source and minifier settings
+   * @param fingerprint
+   *          current fingerprint of the source
+   * @return the minified source, or null if it is not cached or has changed
+   */
+  public synchronized MinifiedSource get(String key, long fingerprint) {
+    Cached cached = entries.get(key);
+
+    if (cached == null || cached.fingerprint != fingerprint) {
+      return null;
+    }
+
+    return cached.minified;
+  }
+
+  /**
+   * @param key
+   *          identifies the source and minifier settings
+   * @param fingerprint
+   *          fingerprint of the source the content was minified from
+   * @param minified
+   *          minified content
+   */
+  public synchronized void put(String key, long fingerprint, MinifiedSource minified) {
+    entries.put(key, new Cached(fingerprint, minified));
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static class Cached {
+    private final long fingerprint;
+
+    private final MinifiedSource minified;
+
+    private Cached(long fingerprint, MinifiedSource minified) {
+      this.fingerprint = fingerprint;
+      this.minified = minified;
+    }
+  }
+}
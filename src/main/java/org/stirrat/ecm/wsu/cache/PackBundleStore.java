@@ -0,0 +1,932 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps every bundle in a single append-only pack file, so the cache
+ * directory holds two files rather than thousands, and finds them through a
+ * memory-mapped index so a lookup never touches the filesystem.
+ * 
+ * Each record in the pack holds a name, when it was stored, its length and
+ * a CRC32 checksum, followed by the contents. Replacing or removing a name
+ * appends a new record, the space of the old one is reclaimed when the pack
+ * is compacted. The index is an open addressing hash table of name to
+ * offset, length, time stored and checksum. It is derived from the pack: on
+ * startup records written after the index was last updated are replayed,
+ * and a missing or mismatched index is rebuilt by scanning the pack. Names
+ * whose hashes collide are told apart by the name stored in each record,
+ * which is read once and then held in memory.
+ * 
+ * Writers take turns appending to the pack, but the contents of a bundle are
+ * copied in without holding the lock lookups and reads use. Reads return a
+ * mapped view of the pack, and each record's checksum is verified the first
+ * time it is read.
+ * 
+ * Bundles in the pack are not in the weblayout, so must be served by
+ * WSU_SERVE_BUNDLE.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class PackBundleStore implements BundleStore {
+
+  public static final String PACK_NAME = "bundles.pack";
+
+  public static final String INDEX_NAME = "bundles.idx";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // pack: magic, generation
+  private static final long PACK_MAGIC = 0x5753555041434B31L;
+
+  private static final int PACK_HEADER = 16;
+
+  // record: magic, name length, time stored, length (-1 if removed),
+  // checksum, then the name and contents
+  private static final int RECORD_MAGIC = 0x57535552;
+
+  private static final int RECORD_HEADER = 32;
+
+  private static final int MAX_NAME = 1024;
+
+  // index: magic, generation of the pack indexed, capacity, slots used, live
+  // names, length of the pack indexed, bytes of the pack no longer used
+  private static final long INDEX_MAGIC = 0x5753554944583032L;
+
+  private static final int INDEX_MAGIC_AT = 0;
+
+  private static final int INDEX_GENERATION_AT = 8;
+
+  private static final int INDEX_CAPACITY_AT = 16;
+
+  private static final int INDEX_USED_AT = 20;
+
+  private static final int INDEX_LIVE_AT = 24;
+
+  private static final int INDEX_PACK_LENGTH_AT = 32;
+
+  private static final int INDEX_GARBAGE_AT = 40;
+
+  private static final int INDEX_HEADER = 48;
+
+  // slot: hash of the name (0 if empty), second hash, name length, offset of
+  // the record, length (-1 if removed), time stored, checksum
+  private static final int SLOT_SIZE = 48;
+
+  private static final int SLOT_CHECK = 8;
+
+  private static final int SLOT_NAME_LENGTH = 12;
+
+  private static final int SLOT_OFFSET = 16;
+
+  private static final int SLOT_LENGTH = 24;
+
+  private static final int SLOT_LAST_MODIFIED = 32;
+
+  private static final int SLOT_CHECKSUM = 40;
+
+  private static final int MIN_CAPACITY = 1024;
+
+  /**
+   * Compaction is skipped until at least this much of the pack is unused.
+   */
+  private static final long COMPACT_MIN_GARBAGE = 1024 * 1024L;
+
+  private final File dir;
+
+  private final File packFile;
+
+  private final File indexFile;
+
+  /**
+   * Held while appending to or rewriting the pack, before the store's own
+   * lock.
+   */
+  private final Object appendLock = new Object();
+
+  private RandomAccessFile pack;
+
+  private FileChannel packChannel;
+
+  private long generation;
+
+  private MappedByteBuffer index;
+
+  private int capacity;
+
+  private int used;
+
+  private int live;
+
+  private long packLength;
+
+  private long garbage;
+
+  /**
+   * The names of the slots of the index, read from the pack when first
+   * needed.
+   */
+  private byte[][] names;
+
+  /**
+   * Offsets of the records whose checksum has been verified.
+   */
+  private final Set<Long> verified = new HashSet<Long>();
+
+  /**
+   * @param dir
+   *          the cache directory
+   */
+  public PackBundleStore(File dir) {
+    this.dir = dir;
+    this.packFile = new File(dir, PACK_NAME);
+    this.indexFile = new File(dir, INDEX_NAME);
+  }
+
+  public synchronized long lastModified(String name) {
+    int slot = find(name);
+    return slot < 0 ? 0 : index.getLong(slot + SLOT_LAST_MODIFIED);
+  }
+
+  public synchronized long length(String name) {
+    int slot = find(name);
+    return slot < 0 ? 0 : index.getLong(slot + SLOT_LENGTH);
+  }
+
+  public void put(String name, File file) throws IOException {
+    byte[] nameBytes = name.getBytes(UTF8);
+
+    if (nameBytes.length > MAX_NAME) {
+      throw new IOException("Name too long for the pack: " + name);
+    }
+
+    synchronized (appendLock) {
+      FileChannel channel;
+      long offset;
+
+      synchronized (this) {
+        open();
+        channel = packChannel;
+        offset = packLength;
+      }
+
+      // nothing else appends while the append lock is held, and the record
+      // is not visible to readers until it is applied
+      long dataOffset = offset + RECORD_HEADER + nameBytes.length;
+      long length = 0;
+      long lastModified = System.currentTimeMillis();
+
+      CRC32 checksum = new CRC32();
+
+      try {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int read;
+
+          while ((read = in.read(buffer)) != -1) {
+            checksum.update(buffer, 0, read);
+            writeFully(channel, ByteBuffer.wrap(buffer, 0, read), dataOffset + length);
+            length += read;
+          }
+        } finally {
+          in.close();
+        }
+
+        // the header goes last, so a record is only valid once complete
+        writeFully(channel, getRecordHeader(nameBytes, lastModified, length, checksum.getValue()), offset);
+        channel.force(false);
+
+      } catch (IOException e) {
+        channel.truncate(offset);
+        throw e;
+      }
+
+      synchronized (this) {
+        apply(nameBytes, offset, lastModified, length, checksum.getValue());
+        verified.add(offset);
+      }
+    }
+
+    file.delete();
+  }
+
+  public ByteBuffer read(String name) throws IOException {
+    ByteBuffer content;
+    long offset;
+    long expected;
+    boolean verify;
+
+    synchronized (this) {
+      int slot = find(name);
+
+      if (slot < 0) {
+        return null;
+      }
+
+      offset = index.getLong(slot + SLOT_OFFSET);
+      expected = index.getLong(slot + SLOT_CHECKSUM);
+      verify = !verified.contains(offset);
+
+      content = packChannel.map(FileChannel.MapMode.READ_ONLY, getDataOffset(slot), index.getLong(slot
+          + SLOT_LENGTH));
+    }
+
+    if (verify) {
+      if (getChecksum(content.duplicate()) != expected) {
+        SystemUtils.trace("wsu", "PackBundleStore: checksum mismatch, removing: " + name);
+        remove(name, offset);
+        return null;
+      }
+
+      synchronized (this) {
+        verified.add(offset);
+      }
+    }
+
+    return content.asReadOnlyBuffer();
+  }
+
+  public boolean remove(String name) {
+    return remove(name, -1);
+  }
+
+  /**
+   * Remove [name], if it is still stored in the record at [offset].
+   * 
+   * @param name
+   * @param offset
+   *          -1 to remove whichever record is current
+   * @return true if [name] was removed
+   */
+  private boolean remove(String name, long offset) {
+    synchronized (appendLock) {
+      synchronized (this) {
+        int slot = find(name);
+
+        if (slot < 0 || offset >= 0 && index.getLong(slot + SLOT_OFFSET) != offset) {
+          return false;
+        }
+
+        byte[] nameBytes = name.getBytes(UTF8);
+        long recordOffset = packLength;
+
+        try {
+          writeFully(packChannel, getRecordHeader(nameBytes, 0, -1, 0), recordOffset);
+          packChannel.force(false);
+
+          apply(nameBytes, recordOffset, 0, -1, 0);
+        } catch (IOException e) {
+          SystemUtils.trace("wsu", "PackBundleStore: cannot remove: " + name + ": " + e.getMessage());
+          return false;
+        }
+
+        return true;
+      }
+    }
+  }
+
+  public synchronized List<String> list() {
+    List<String> names = new ArrayList<String>();
+
+    try {
+      open();
+
+      for (int i = 0; i < capacity; i++) {
+        int slot = INDEX_HEADER + i * SLOT_SIZE;
+
+        if (isLive(index, slot)) {
+          names.add(new String(getName(slot), UTF8));
+        }
+      }
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "PackBundleStore: cannot list: " + e.getMessage());
+    }
+
+    return names;
+  }
+
+  public File getFile(String name) {
+    return null;
+  }
+
+  /**
+   * Rewrite the pack with only the current version of each name, once at
+   * least half of it is no longer used.
+   */
+  public void compact() {
+    synchronized (appendLock) {
+      synchronized (this) {
+        try {
+          open();
+
+          if (garbage < COMPACT_MIN_GARBAGE || garbage < packLength - PACK_HEADER - garbage) {
+            return;
+          }
+
+          long before = packLength;
+
+          rewrite();
+
+          SystemUtils.trace("wsu", "PackBundleStore: compacted: " + before + " -> " + packLength + " bytes, "
+              + live + " names");
+        } catch (IOException e) {
+          SystemUtils.trace("wsu", "PackBundleStore: compaction failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Open the pack and index, recovering them if the server stopped part way
+   * through a write.
+   * 
+   * @throws IOException
+   */
+  private void open() throws IOException {
+    if (packChannel != null) {
+      return;
+    }
+
+    dir.mkdirs();
+
+    pack = new RandomAccessFile(packFile, "rw");
+    packChannel = pack.getChannel();
+
+    if (!readPackHeader()) {
+      SystemUtils.trace("wsu", "PackBundleStore: starting a new pack: " + packFile);
+
+      generation = new Random().nextLong();
+
+      packChannel.truncate(0);
+      writeFully(packChannel, getPackHeader(generation), 0);
+      packChannel.force(true);
+    }
+
+    if (!loadIndex()) {
+      SystemUtils.trace("wsu", "PackBundleStore: rebuilding the index of: " + packFile);
+
+      index = null;
+      packLength = PACK_HEADER;
+      garbage = 0;
+
+      rebuildIndex(MIN_CAPACITY);
+    }
+
+    replay();
+  }
+
+  private boolean readPackHeader() throws IOException {
+    if (packChannel.size() < PACK_HEADER) {
+      return false;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+    readFully(header, 0);
+
+    if (header.getLong(0) != PACK_MAGIC) {
+      return false;
+    }
+
+    generation = header.getLong(8);
+
+    return true;
+  }
+
+  private static ByteBuffer getPackHeader(long generation) {
+    ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+    header.putLong(PACK_MAGIC).putLong(generation).flip();
+    return header;
+  }
+
+  /**
+   * Map the index, if it belongs to this pack.
+   * 
+   * @return false if the index must be rebuilt
+   * @throws IOException
+   */
+  private boolean loadIndex() throws IOException {
+    if (!indexFile.isFile() || indexFile.length() < INDEX_HEADER) {
+      return false;
+    }
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+
+    try {
+      long size = file.length();
+      MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+      int mappedCapacity = mapped.getInt(INDEX_CAPACITY_AT);
+      long indexed = mapped.getLong(INDEX_PACK_LENGTH_AT);
+
+      if (mapped.getLong(INDEX_MAGIC_AT) != INDEX_MAGIC || mapped.getLong(INDEX_GENERATION_AT) != generation
+          || mappedCapacity < MIN_CAPACITY || Integer.bitCount(mappedCapacity) != 1
+          || size != INDEX_HEADER + (long) mappedCapacity * SLOT_SIZE || indexed < PACK_HEADER
+          || indexed > packChannel.size()) {
+        return false;
+      }
+
+      index = mapped;
+      capacity = mappedCapacity;
+      names = new byte[capacity][];
+      used = mapped.getInt(INDEX_USED_AT);
+      live = mapped.getInt(INDEX_LIVE_AT);
+      packLength = indexed;
+      garbage = mapped.getLong(INDEX_GARBAGE_AT);
+
+      return true;
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Index the records written after the index was last updated. An
+   * incomplete record at the end of the pack is discarded.
+   * 
+   * @throws IOException
+   */
+  private void replay() throws IOException {
+    long size = packChannel.size();
+    long offset = packLength;
+    int replayed = 0;
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+
+    while (offset + RECORD_HEADER <= size) {
+      header.clear();
+      readFully(header, offset);
+
+      int nameLength = header.getInt(4);
+      long lastModified = header.getLong(8);
+      long length = header.getLong(16);
+      long checksum = header.getLong(24);
+
+      if (header.getInt(0) != RECORD_MAGIC || nameLength <= 0 || nameLength > MAX_NAME || length < -1) {
+        break;
+      }
+
+      long end = offset + getRecordSize(nameLength, length);
+
+      if (end > size) {
+        break;
+      }
+
+      ByteBuffer name = ByteBuffer.allocate(nameLength);
+      readFully(name, offset + RECORD_HEADER);
+
+      if (length >= 0 && getChecksum(offset + RECORD_HEADER + nameLength, length) != checksum) {
+        break;
+      }
+
+      apply(name.array(), offset, lastModified, length, checksum);
+      verified.add(offset);
+
+      offset = end;
+      replayed++;
+    }
+
+    if (offset < size) {
+      SystemUtils.trace("wsu", "PackBundleStore: discarding incomplete record at: " + offset);
+      packChannel.truncate(offset);
+    }
+
+    if (replayed > 0) {
+      SystemUtils.trace("wsu", "PackBundleStore: replayed " + replayed + " records");
+    }
+  }
+
+  /**
+   * Point the index at a record which has been written to the pack.
+   * 
+   * @param name
+   * @param offset
+   * @param lastModified
+   * @param length
+   *          -1 to remove the name
+   * @param checksum
+   * @throws IOException
+   *           if the index is full and cannot be grown
+   */
+  private void apply(byte[] name, long offset, long lastModified, long length, long checksum) throws IOException {
+    long hash = getHash(name);
+    int check = Arrays.hashCode(name);
+
+    // grow, or just clear out removed names, before the table gets full
+    if (used + 1 > capacity / 4 * 3) {
+      try {
+        rebuildIndex(live + 1 > capacity / 2 ? capacity * 2 : capacity);
+      } catch (IOException e) {
+        if (used + 1 >= capacity) {
+          throw e;
+        }
+        SystemUtils.trace("wsu", "PackBundleStore: cannot grow the index: " + e.getMessage());
+      }
+    }
+
+    int slot = findSlot(name, hash, check);
+
+    boolean occupied = index.getLong(slot) != 0;
+    boolean exists = occupied && index.getLong(slot + SLOT_LENGTH) >= 0;
+
+    if (exists) {
+      garbage += getRecordSize(name.length, index.getLong(slot + SLOT_LENGTH));
+    }
+
+    if (length < 0) {
+      // the removal record itself is of no further use
+      garbage += getRecordSize(name.length, length);
+
+      // the slot keeps the offset of the name's last record, so its name can
+      // still be compared until the pack is compacted
+      if (exists) {
+        index.putLong(slot + SLOT_LENGTH, -1);
+        live--;
+      }
+    } else {
+      if (!occupied) {
+        index.putLong(slot, hash);
+        index.putInt(slot + SLOT_CHECK, check);
+        index.putInt(slot + SLOT_NAME_LENGTH, name.length);
+        names[getSlotNumber(slot)] = name;
+        used++;
+      }
+
+      if (!exists) {
+        live++;
+      }
+
+      index.putLong(slot + SLOT_OFFSET, offset);
+      index.putLong(slot + SLOT_LENGTH, length);
+      index.putLong(slot + SLOT_LAST_MODIFIED, lastModified);
+      index.putLong(slot + SLOT_CHECKSUM, checksum);
+    }
+
+    packLength = offset + getRecordSize(name.length, length);
+
+    writeIndexHeader(index);
+  }
+
+  /**
+   * Write a new index of [newCapacity] slots holding the current names, and
+   * map it in place of the current one.
+   * 
+   * @param newCapacity
+   * @throws IOException
+   */
+  private void rebuildIndex(int newCapacity) throws IOException {
+    File temp = File.createTempFile(INDEX_NAME + ".", BundleFileWriter.TEMP_SUFFIX, dir);
+    MappedByteBuffer rebuilt;
+    byte[][] rebuiltNames = new byte[newCapacity][];
+
+    try {
+      RandomAccessFile file = new RandomAccessFile(temp, "rw");
+
+      try {
+        file.setLength(INDEX_HEADER + (long) newCapacity * SLOT_SIZE);
+        rebuilt = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+      } finally {
+        file.close();
+      }
+
+      int count = 0;
+
+      for (int i = 0; index != null && i < capacity; i++) {
+        int slot = INDEX_HEADER + i * SLOT_SIZE;
+
+        if (isLive(index, slot)) {
+          int target = findEmptySlot(rebuilt, newCapacity, index.getLong(slot));
+
+          for (int j = 0; j < SLOT_SIZE; j += 8) {
+            rebuilt.putLong(target + j, index.getLong(slot + j));
+          }
+
+          rebuiltNames[getSlotNumber(target)] = names[i];
+          count++;
+        }
+      }
+
+      capacity = newCapacity;
+      used = count;
+      live = count;
+
+      writeIndexHeader(rebuilt);
+      rebuilt.force();
+
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+
+    BundleFileWriter.moveIntoPlace(temp, indexFile);
+
+    index = rebuilt;
+    names = rebuiltNames;
+  }
+
+  /**
+   * Copy the current record of each name into a new pack, then swap it in.
+   * 
+   * @throws IOException
+   */
+  private void rewrite() throws IOException {
+    List<Integer> slots = new ArrayList<Integer>(live);
+
+    for (int i = 0; i < capacity; i++) {
+      int slot = INDEX_HEADER + i * SLOT_SIZE;
+
+      if (isLive(index, slot)) {
+        slots.add(slot);
+      }
+    }
+
+    // keep the order records were written in
+    Collections.sort(slots, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long offsetA = index.getLong(a + SLOT_OFFSET);
+        long offsetB = index.getLong(b + SLOT_OFFSET);
+        return offsetA < offsetB ? -1 : (offsetA == offsetB ? 0 : 1);
+      }
+    });
+
+    long newGeneration = new Random().nextLong();
+    long[] offsets = new long[slots.size()];
+    long newLength;
+
+    BundleFileWriter out = new BundleFileWriter(packFile, UTF8);
+
+    try {
+      FileChannel target = out.getChannel();
+
+      ByteBuffer header = getPackHeader(newGeneration);
+
+      while (header.hasRemaining()) {
+        target.write(header);
+      }
+
+      for (int i = 0; i < offsets.length; i++) {
+        int slot = slots.get(i);
+        long offset = index.getLong(slot + SLOT_OFFSET);
+        long size = getRecordSize(index.getInt(slot + SLOT_NAME_LENGTH), index.getLong(slot + SLOT_LENGTH));
+        long copied = 0;
+
+        offsets[i] = target.position();
+
+        while (copied < size) {
+          copied += packChannel.transferTo(offset + copied, size - copied, target);
+        }
+      }
+
+      newLength = target.position();
+
+      out.close();
+    } catch (IOException e) {
+      out.abort();
+      throw e;
+    }
+
+    // if the swap fails, the pack and index are opened again on next use
+    pack.close();
+    packChannel = null;
+
+    BundleFileWriter.moveIntoPlace(out.getTempFile(), packFile);
+
+    pack = new RandomAccessFile(packFile, "rw");
+    packChannel = pack.getChannel();
+
+    // the index names the old pack until its generation is updated, so it is
+    // rebuilt from the pack if this is interrupted
+    for (int i = 0; i < offsets.length; i++) {
+      index.putLong(slots.get(i) + SLOT_OFFSET, offsets[i]);
+    }
+
+    packLength = newLength;
+    garbage = 0;
+    verified.clear();
+
+    writeIndexHeader(index);
+    index.force();
+
+    generation = newGeneration;
+
+    writeIndexHeader(index);
+    index.force();
+
+    // drop removed names
+    rebuildIndex(capacity);
+  }
+
+  private void writeIndexHeader(ByteBuffer target) {
+    target.putLong(INDEX_MAGIC_AT, INDEX_MAGIC);
+    target.putLong(INDEX_GENERATION_AT, generation);
+    target.putInt(INDEX_CAPACITY_AT, capacity);
+    target.putInt(INDEX_USED_AT, used);
+    target.putInt(INDEX_LIVE_AT, live);
+    target.putLong(INDEX_PACK_LENGTH_AT, packLength);
+    target.putLong(INDEX_GARBAGE_AT, garbage);
+  }
+
+  private static ByteBuffer getRecordHeader(byte[] name, long lastModified, long length, long checksum) {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + name.length);
+
+    header.putInt(RECORD_MAGIC).putInt(name.length).putLong(lastModified).putLong(length).putLong(checksum);
+    header.put(name).flip();
+
+    return header;
+  }
+
+  /**
+   * Find the slot of [name] in the index.
+   * 
+   * @param name
+   * @return the position of the slot, or -1 if [name] is not in the store
+   */
+  private int find(String name) {
+    try {
+      open();
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "PackBundleStore: cannot open: " + packFile + ": " + e.getMessage());
+      return -1;
+    }
+
+    byte[] nameBytes = name.getBytes(UTF8);
+
+    try {
+      int slot = findSlot(nameBytes, getHash(nameBytes), Arrays.hashCode(nameBytes));
+
+      return isLive(index, slot) ? slot : -1;
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "PackBundleStore: cannot read: " + packFile + ": " + e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * Probe the index for [name].
+   * 
+   * @return the position of the name's slot, or of the empty slot it would
+   *         go in
+   * @throws IOException
+   *           if the name of a colliding slot cannot be read
+   */
+  private int findSlot(byte[] name, long hash, int check) throws IOException {
+    int mask = capacity - 1;
+    int i = (int) (hash ^ (hash >>> 32)) & mask;
+
+    while (true) {
+      int slot = INDEX_HEADER + i * SLOT_SIZE;
+      long slotHash = index.getLong(slot);
+
+      if (slotHash == 0) {
+        return slot;
+      }
+
+      if (slotHash == hash && index.getInt(slot + SLOT_CHECK) == check
+          && index.getInt(slot + SLOT_NAME_LENGTH) == name.length && Arrays.equals(getName(slot), name)) {
+        return slot;
+      }
+
+      i = (i + 1) & mask;
+    }
+  }
+
+  /**
+   * Probe [table] for the first empty slot for [hash].
+   */
+  private static int findEmptySlot(ByteBuffer table, int tableCapacity, long hash) {
+    int mask = tableCapacity - 1;
+    int i = (int) (hash ^ (hash >>> 32)) & mask;
+
+    while (table.getLong(INDEX_HEADER + i * SLOT_SIZE) != 0) {
+      i = (i + 1) & mask;
+    }
+
+    return INDEX_HEADER + i * SLOT_SIZE;
+  }
+
+  /**
+   * Returns the name of a slot, reading it from the slot's record the first
+   * time.
+   * 
+   * @param slot
+   * @return
+   * @throws IOException
+   */
+  private byte[] getName(int slot) throws IOException {
+    int number = getSlotNumber(slot);
+
+    if (names[number] == null) {
+      ByteBuffer name = ByteBuffer.allocate(index.getInt(slot + SLOT_NAME_LENGTH));
+      readFully(name, index.getLong(slot + SLOT_OFFSET) + RECORD_HEADER);
+      names[number] = name.array();
+    }
+
+    return names[number];
+  }
+
+  private static int getSlotNumber(int slot) {
+    return (slot - INDEX_HEADER) / SLOT_SIZE;
+  }
+
+  private static boolean isLive(ByteBuffer table, int slot) {
+    return table.getLong(slot) != 0 && table.getLong(slot + SLOT_LENGTH) >= 0;
+  }
+
+  private long getDataOffset(int slot) {
+    return index.getLong(slot + SLOT_OFFSET) + RECORD_HEADER + index.getInt(slot + SLOT_NAME_LENGTH);
+  }
+
+  private static long getRecordSize(int nameLength, long length) {
+    return RECORD_HEADER + nameLength + Math.max(length, 0);
+  }
+
+  /**
+   * 64 bit FNV-1a hash of a name, never 0 as that marks an empty slot. Not
+   * private, so tests can force collisions.
+   * 
+   * @param name
+   * @return
+   */
+  long getHash(byte[] name) {
+    long hash = 0xcbf29ce484222325L;
+
+    for (byte b : name) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+
+    return hash != 0 ? hash : 1;
+  }
+
+  private static long getChecksum(ByteBuffer content) {
+    CRC32 checksum = new CRC32();
+    byte[] buffer = new byte[Math.min(BUFFER_SIZE, content.remaining())];
+
+    while (content.hasRemaining()) {
+      int count = Math.min(buffer.length, content.remaining());
+      content.get(buffer, 0, count);
+      checksum.update(buffer, 0, count);
+    }
+
+    return checksum.getValue();
+  }
+
+  private long getChecksum(long offset, long length) throws IOException {
+    CRC32 checksum = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = 0;
+
+    while (position < length) {
+      buffer.clear();
+      buffer.limit((int) Math.min(BUFFER_SIZE, length - position));
+      readFully(buffer, offset + position);
+
+      checksum.update(buffer.array(), 0, buffer.limit());
+      position += buffer.limit();
+    }
+
+    return checksum.getValue();
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    long position = offset;
+
+    while (buffer.hasRemaining()) {
+      int read = packChannel.read(buffer, position);
+
+      if (read == -1) {
+        throw new IOException("Unexpected end of " + packFile + " at " + position);
+      }
+
+      position += read;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    long position = offset;
+
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
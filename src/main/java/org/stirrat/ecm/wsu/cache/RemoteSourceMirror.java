@@ -0,0 +1,441 @@
+package org.stirrat.ecm.wsu.cache;
+
+import intradoc.common.SystemUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copies of remote (http and https) items, so they can be bundled like
+ * files in the weblayout.
+ * 
+ * An item is downloaded the first time it is used, then revalidated on a
+ * schedule with If-None-Match and If-Modified-Since rather than on every
+ * request. The copy is only replaced when the remote content changes, which
+ * changes its fingerprint and so rebuilds the bundles which include it. If
+ * the remote is unavailable, the last good copy is kept, also across
+ * restarts.
+ * 
+ * Only allowed hosts are contacted. Redirects are followed here rather than
+ * by the connection, so every hop is checked against the allowed hosts.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class RemoteSourceMirror {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static final int MAX_REDIRECTS = 5;
+
+  private final File dir;
+
+  private final int connectTimeout;
+
+  private final int readTimeout;
+
+  private final long maxBytes;
+
+  private final Set<String> hosts;
+
+  private final ConcurrentMap<String, Mirrored> mirrored = new ConcurrentHashMap<String, Mirrored>();
+
+  private final ConcurrentMap<String, String> urls = new ConcurrentHashMap<String, String>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param dir
+   *          directory for the copies
+   * @param connectTimeout
+   *          milliseconds to wait for a connection
+   * @param readTimeout
+   *          milliseconds to wait for data
+   * @param maxBytes
+   *          largest item to download
+   * @param hosts
+   *          lower case hosts items and their redirects may be downloaded
+   *          from
+   */
+  public RemoteSourceMirror(File dir, int connectTimeout, int readTimeout, long maxBytes, Set<String> hosts) {
+    this.dir = dir;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.maxBytes = maxBytes;
+    this.hosts = hosts;
+  }
+
+  /**
+   * @param item
+   * @return true if [item] is an http or https URL
+   */
+  public static boolean isRemote(String item) {
+    String lower = item.toLowerCase();
+    return lower.startsWith("http://") || lower.startsWith("https://");
+  }
+
+  /**
+   * Returns the local copy of [url], downloading it if there is none yet.
+   * 
+   * @param url
+   * @return the copy, or null if it could not be downloaded
+   */
+  public File getFile(String url) {
+    Mirrored item = mirrored.get(url);
+
+    if (item == null) {
+      item = new Mirrored(url, getCopyFile(url));
+
+      Mirrored existing = mirrored.putIfAbsent(url, item);
+
+      if (existing != null) {
+        item = existing;
+      } else {
+        urls.put(item.file.getPath(), url);
+      }
+    }
+
+    synchronized (item) {
+      if (!item.loaded) {
+        item.loaded = true;
+
+        if (!load(item)) {
+          try {
+            fetch(item);
+          } catch (IOException e) {
+            SystemUtils.trace("wsu", "remote: cannot download: " + url + ": " + e.getMessage());
+          }
+        }
+      }
+    }
+
+    return item.file.isFile() ? item.file : null;
+  }
+
+  /**
+   * Returns the URL a local copy was downloaded from.
+   * 
+   * @param file
+   * @return the URL, or null if [file] is not a copy
+   */
+  public String getUrl(File file) {
+    return urls.get(file.getPath());
+  }
+
+  /**
+   * Revalidate the copy of [url] with the remote now.
+   * 
+   * @param url
+   * @return true if the copy was replaced
+   * @throws IOException
+   *           if the remote is unavailable, the last good copy is kept
+   */
+  public boolean revalidate(String url) throws IOException {
+    Mirrored item = mirrored.get(url);
+
+    if (item == null) {
+      return getFile(url) != null;
+    }
+
+    synchronized (item) {
+      return fetch(item);
+    }
+  }
+
+  /**
+   * Revalidate every item used since startup.
+   */
+  public void revalidateAll() {
+    for (String url : mirrored.keySet()) {
+      try {
+        revalidate(url);
+      } catch (IOException e) {
+        SystemUtils.trace("wsu", "remote: keeping last good copy of: " + url + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Revalidate every item used since startup every [interval] milliseconds
+   * on a background thread.
+   * 
+   * @param interval
+   */
+  public synchronized void start(long interval) {
+    if (scheduler != null || interval <= 0) {
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "WSU remote revalidation");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          revalidateAll();
+        } catch (RuntimeException e) {
+          SystemUtils.trace("wsu", "remote: revalidation failed: " + e.getMessage());
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Download [item], or only check it has not changed if there is a copy.
+   * 
+   * @param item
+   * @return true if the copy was replaced
+   * @throws IOException
+   */
+  private boolean fetch(Mirrored item) throws IOException {
+    boolean hasCopy = item.file.isFile();
+
+    URL url = new URL(item.url);
+
+    for (int redirects = 0;; redirects++) {
+      checkAllowed(url);
+
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+      try {
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+
+        if (hasCopy && item.etag != null) {
+          connection.setRequestProperty("If-None-Match", item.etag);
+        }
+
+        if (hasCopy && item.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", item.lastModified);
+        }
+
+        int status = connection.getResponseCode();
+
+        if (isRedirect(status)) {
+          String location = connection.getHeaderField("Location");
+
+          if (location == null || redirects >= MAX_REDIRECTS) {
+            throw new IOException("HTTP " + status + ": redirect not followed");
+          }
+
+          url = new URL(url, location);
+          SystemUtils.trace("wsu", "remote: redirected: " + item.url + " to " + url);
+          continue;
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && hasCopy) {
+          SystemUtils.trace("wsu", "remote: not modified: " + item.url);
+          return false;
+        }
+
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new IOException("HTTP " + status);
+        }
+
+        byte[] content = read(connection.getInputStream());
+
+        // servers without validators send the whole item every time
+        boolean changed = !hasCopy || !Arrays.equals(content, read(new FileInputStream(item.file)));
+
+        if (changed) {
+          SystemUtils.trace("wsu", "remote: downloaded: " + item.url + " (" + content.length + " bytes)");
+          write(item.file, content);
+        }
+
+        // only once the content they describe is saved, so a failed write is
+        // not revalidated as current
+        item.etag = connection.getHeaderField("ETag");
+        item.lastModified = connection.getHeaderField("Last-Modified");
+
+        store(item);
+
+        return changed;
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * @param url
+   * @throws IOException
+   *           if [url] is not http or https on an allowed host
+   */
+  private void checkAllowed(URL url) throws IOException {
+    String protocol = url.getProtocol().toLowerCase();
+
+    if (!protocol.equals("http") && !protocol.equals("https") || !hosts.contains(url.getHost().toLowerCase())) {
+      throw new IOException("Host not allowed: " + url);
+    }
+  }
+
+  private static boolean isRedirect(int status) {
+    return status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_MOVED_TEMP
+        || status == HttpURLConnection.HTTP_SEE_OTHER || status == 307 || status == 308;
+  }
+
+  private byte[] read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+
+        if (out.size() > maxBytes) {
+          throw new IOException("Larger than " + maxBytes + " bytes");
+        }
+      }
+
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private void write(File file, byte[] content) throws IOException {
+    dir.mkdirs();
+
+    BundleFileWriter writer = new BundleFileWriter(file, UTF8);
+
+    try {
+      writer.getOutputStream().write(content);
+      writer.commit();
+    } catch (IOException e) {
+      writer.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * Read the validators of a copy kept from before a restart.
+   * 
+   * @param item
+   * @return false if there is no copy
+   */
+  private boolean load(Mirrored item) {
+    File propertiesFile = getPropertiesFile(item.file);
+
+    if (!item.file.isFile() || !propertiesFile.isFile()) {
+      return false;
+    }
+
+    Properties properties = new Properties();
+
+    try {
+      InputStream in = new FileInputStream(propertiesFile);
+
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "remote: cannot read: " + propertiesFile + ": " + e.getMessage());
+    }
+
+    item.etag = properties.getProperty("etag");
+    item.lastModified = properties.getProperty("lastModified");
+
+    return true;
+  }
+
+  private void store(Mirrored item) throws IOException {
+    Properties properties = new Properties();
+
+    properties.setProperty("url", item.url);
+
+    if (item.etag != null) {
+      properties.setProperty("etag", item.etag);
+    }
+
+    if (item.lastModified != null) {
+      properties.setProperty("lastModified", item.lastModified);
+    }
+
+    StringWriter content = new StringWriter();
+    properties.store(content, null);
+
+    BundleFileWriter writer = new BundleFileWriter(getPropertiesFile(item.file), UTF8);
+
+    try {
+      writer.write(content.toString());
+      writer.commit();
+    } catch (IOException e) {
+      writer.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * Name the copy of [url] after a hash of it, keeping the extension.
+   * 
+   * @param url
+   * @return
+   */
+  private File getCopyFile(String url) {
+    String path = url.replaceAll("[?#].*$", "");
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    int extension = name.lastIndexOf('.');
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      String hash = String.format("%040x", new BigInteger(1, digest.digest(url.getBytes(UTF8))));
+
+      String suffix = extension > 0 ? name.substring(extension).toLowerCase() : "";
+
+      return new File(dir, hash + (suffix.matches("\\.[a-z0-9]{1,8}") ? suffix : ""));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static File getPropertiesFile(File copy) {
+    return new File(copy.getPath() + ".properties");
+  }
+
+  private static class Mirrored {
+    final String url;
+
+    final File file;
+
+    boolean loaded;
+
+    String etag;
+
+    String lastModified;
+
+    Mirrored(String url, File file) {
+      this.url = url;
+      this.file = file;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTML rendered for a group of scripts, so a page rendering the same
+ * scripts again costs one lookup. Each fragment keeps the manifest entries
+ * of the bundles it references, and is only used while they are current, so
+ * it is dropped together with its bundles.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class RenderedFragmentCache {
+
+  private final Map<String, Fragment> entries;
+
+  /**
+   * @param maxEntries
+   *          maximum number of fragments to keep, least recently used
+   *          fragments are dropped first
+   */
+  public RenderedFragmentCache(final int maxEntries) {
+    entries = new LinkedHashMap<String, Fragment>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   *          identifies the scripts and render settings
+   * @return the fragment, or null if it is not cached
+   */
+  public synchronized Fragment get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * @param key
+   *          identifies the scripts and render settings
+   * @param html
+   *          rendered HTML
+   * @param bundles
+   *          manifest entries of the bundles the HTML references
+   */
+  public synchronized void put(String key, String html, List<BundleManifest.Entry> bundles) {
+    entries.put(key, new Fragment(html, bundles));
+  }
+
+  public synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Rendered HTML and the bundles it references.
+   */
+  public static class Fragment {
+    private final String html;
+
+    private final List<BundleManifest.Entry> bundles;
+
+    private Fragment(String html, List<BundleManifest.Entry> bundles) {
+      this.html = html;
+      this.bundles = new ArrayList<BundleManifest.Entry>(bundles);
+    }
+
+    public String getHtml() {
+      return html;
+    }
+
+    public List<BundleManifest.Entry> getBundles() {
+      return bundles;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Files which were read into a source's output when it was last processed,
+ * such as images embedded in a stylesheet. They are part of the source's
+ * fingerprint, so a bundle is rebuilt when one of them changes even though
+ * the source itself has not.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public final class SourceDependencies {
+
+  private static final ConcurrentMap<String, List<File>> dependencies = new ConcurrentHashMap<String, List<File>>();
+
+  private SourceDependencies() {
+  }
+
+  /**
+   * Record the files read while processing [source], replacing those
+   * recorded before.
+   * 
+   * @param source
+   * @param files
+   */
+  public static void record(File source, List<File> files) {
+    if (files.isEmpty()) {
+      dependencies.remove(source.getPath());
+    } else {
+      dependencies.put(source.getPath(), Collections.unmodifiableList(new ArrayList<File>(files)));
+    }
+  }
+
+  /**
+   * @param source
+   * @return the files read while [source] was last processed
+   */
+  public static List<File> get(File source) {
+    List<File> files = dependencies.get(source.getPath());
+
+    if (files == null) {
+      return Collections.emptyList();
+    }
+
+    return files;
+  }
+}
@@ -0,0 +1,224 @@
+package org.stirrat.ecm.wsu.css;
+
+import intradoc.common.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Flattens the @import rules of stylesheets served from the weblayout, so an
+ * imported stylesheet is combined into the bundle instead of being fetched by
+ * a separate blocking request.
+ * 
+ * The bundle's item list is expanded so each imported stylesheet is included
+ * before the stylesheet importing it, and the flattened rules are then
+ * stripped from each stylesheet. Imports with media queries, of remote
+ * stylesheets or of missing files are left in place.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class CssImportFlattener {
+
+  /**
+   * Reads the contents of a stylesheet.
+   */
+  public interface SourceReader {
+    String read(File file) throws IOException;
+  }
+
+  private static final Pattern IMPORT = Pattern.compile("@import\\s*(?:url\\(\\s*(?:\"([^\"]*)\"|'([^']*)'"
+      + "|([^\\s\"')]*))\\s*\\)|\"([^\"]*)\"|'([^']*)')\\s*([^;]*);[ \\t]*(?:\\r?\\n)?", Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+
+  private final CssUrlRewriter.AssetResolver resolver;
+
+  private final SourceReader reader;
+
+  /**
+   * @param resolver
+   *          finds the files of imported stylesheets
+   * @param reader
+   *          reads imported stylesheets
+   */
+  public CssImportFlattener(CssUrlRewriter.AssetResolver resolver, SourceReader reader) {
+    this.resolver = resolver;
+    this.reader = reader;
+  }
+
+  /**
+   * Expand [itemList] with the stylesheets each item imports, recursively.
+   * Imported stylesheets come before the stylesheet importing them, and a
+   * stylesheet is only included the first time it appears in the bundle.
+   * 
+   * @param itemList
+   *          web paths of the bundle's stylesheets
+   * @return
+   */
+  public List<String> expand(List<String> itemList) {
+    Set<String> included = new LinkedHashSet<String>();
+
+    for (String item : itemList) {
+      expand(item, included, new HashSet<String>());
+    }
+
+    return new ArrayList<String>(included);
+  }
+
+  private void expand(String item, Set<String> included, Set<String> importing) {
+    if (included.contains(item)) {
+      return;
+    }
+
+    if (!importing.add(item)) {
+      SystemUtils.trace("wsu", "CssImportFlattener: import cycle at: " + item);
+      return;
+    }
+
+    File file = resolver.getFile(item);
+
+    if (file != null && file.isFile()) {
+      try {
+        for (String imported : getImports(reader.read(file), item)) {
+          expand(imported, included, importing);
+        }
+      } catch (IOException e) {
+        SystemUtils.trace("wsu", "CssImportFlattener: cannot read: " + file + ": " + e.getMessage());
+      }
+    }
+
+    importing.remove(item);
+    included.add(item);
+  }
+
+  /**
+   * Returns the web paths of the stylesheets [css] imports which can be
+   * flattened.
+   * 
+   * @param css
+   * @param sourcePath
+   *          web path of the stylesheet
+   * @return
+   */
+  public List<String> getImports(String css, String sourcePath) {
+    List<String> imports = new ArrayList<String>();
+
+    Matcher matcher = IMPORT.matcher(blankComments(css));
+
+    while (matcher.find()) {
+      String resolved = resolveImport(matcher, sourcePath);
+
+      if (resolved != null && isFlattened(matcher, resolved)) {
+        imports.add(resolved);
+      }
+    }
+
+    return imports;
+  }
+
+  /**
+   * Remove the @import rules of [css] which were flattened into the bundle.
+   * Relative imports which are kept are made absolute, so they still resolve
+   * from the bundle.
+   * 
+   * @param css
+   * @param sourcePath
+   *          web path of the stylesheet
+   * @return
+   */
+  public String strip(String css, String sourcePath) {
+    Matcher matcher = IMPORT.matcher(blankComments(css));
+
+    StringBuilder output = new StringBuilder(css.length());
+    int last = 0;
+
+    while (matcher.find()) {
+      String resolved = resolveImport(matcher, sourcePath);
+
+      if (resolved == null) {
+        continue;
+      }
+
+      output.append(css, last, matcher.start());
+
+      if (!isFlattened(matcher, resolved)) {
+        String media = matcher.group(6).trim();
+        output.append("@import url(\"").append(resolved).append("\")").append(media.length() > 0 ? " " : "")
+            .append(media).append(";\n");
+      }
+
+      last = matcher.end();
+    }
+
+    output.append(css, last, css.length());
+
+    return output.toString();
+  }
+
+  /**
+   * Resolve the stylesheet imported by the rule [matcher] found.
+   * 
+   * @param matcher
+   * @param sourcePath
+   * @return the absolute web path or remote URL, or null if the import is
+   *         remote and the stylesheet is not
+   */
+  private static String resolveImport(Matcher matcher, String sourcePath) {
+    String url = null;
+
+    for (int i = 1; i <= 5 && url == null; i++) {
+      url = matcher.group(i);
+    }
+
+    url = url.trim();
+
+    // root relative, unless the stylesheet is remote
+    if (url.startsWith("/") && !url.startsWith("//") && sourcePath.indexOf("://") == -1) {
+      return url;
+    }
+
+    return CssUrlRewriter.resolve(sourcePath, url);
+  }
+
+  private boolean isFlattened(Matcher matcher, String resolved) {
+    // the import only applies to some media, it cannot be combined as is
+    if (matcher.group(6).trim().length() > 0 || resolved.indexOf('?') > -1 || resolved.indexOf('#') > -1) {
+      return false;
+    }
+
+    File file = resolver.getFile(resolved);
+
+    return file != null && file.isFile();
+  }
+
+  /**
+   * Replace the comments in [css] with spaces, so commented out rules are not
+   * matched while offsets into the original are kept.
+   * 
+   * @param css
+   * @return
+   */
+  private static String blankComments(String css) {
+    if (css.indexOf("/*") == -1) {
+      return css;
+    }
+
+    StringBuilder blanked = new StringBuilder(css);
+    Matcher matcher = COMMENT.matcher(css);
+
+    while (matcher.find()) {
+      for (int i = matcher.start(); i < matcher.end(); i++) {
+        blanked.setCharAt(i, ' ');
+      }
+    }
+
+    return blanked.toString();
+  }
+}
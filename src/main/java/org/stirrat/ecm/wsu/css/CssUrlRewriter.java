@@ -0,0 +1,246 @@
+package org.stirrat.ecm.wsu.css;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the relative url() references of a stylesheet against the
+ * stylesheet's own path, so they still resolve once it is combined into a
+ * bundle in another directory. Small images and fonts can be embedded as
+ * data URIs instead.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class CssUrlRewriter {
+
+  /**
+   * Maps a web path to its file, or null if it is not served from the
+   * weblayout.
+   */
+  public interface AssetResolver {
+    File getFile(String path);
+  }
+
+  private static final Pattern URL = Pattern.compile(
+      "url\\(\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"')]*))\\s*\\)", Pattern.CASE_INSENSITIVE);
+
+  private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+
+  static {
+    MIME_TYPES.put("png", "image/png");
+    MIME_TYPES.put("gif", "image/gif");
+    MIME_TYPES.put("jpg", "image/jpeg");
+    MIME_TYPES.put("jpeg", "image/jpeg");
+    MIME_TYPES.put("webp", "image/webp");
+    MIME_TYPES.put("svg", "image/svg+xml");
+    MIME_TYPES.put("ico", "image/x-icon");
+    MIME_TYPES.put("woff", "font/woff");
+    MIME_TYPES.put("woff2", "font/woff2");
+    MIME_TYPES.put("ttf", "font/ttf");
+    MIME_TYPES.put("otf", "font/otf");
+  }
+
+  private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+      .toCharArray();
+
+  private final AssetResolver resolver;
+
+  private final long embedMaxBytes;
+
+  /**
+   * @param resolver
+   *          finds the files of assets to embed
+   * @param embedMaxBytes
+   *          assets of this size or smaller are embedded, 0 to never embed
+   */
+  public CssUrlRewriter(AssetResolver resolver, long embedMaxBytes) {
+    this.resolver = resolver;
+    this.embedMaxBytes = embedMaxBytes;
+  }
+
+  /**
+   * Rewrite the url() references in [css].
+   * 
+   * @param css
+   * @param sourcePath
+   *          web path of the stylesheet
+   * @param embedded
+   *          receives the files of embedded assets
+   * @return
+   */
+  public String rewrite(String css, String sourcePath, List<File> embedded) {
+    Matcher matcher = URL.matcher(css);
+
+    StringBuffer output = new StringBuffer(css.length());
+
+    while (matcher.find()) {
+      String url = matcher.group(1) != null ? matcher.group(1) : matcher.group(2) != null ? matcher.group(2)
+          : matcher.group(3);
+
+      String resolved = resolve(sourcePath, url.trim());
+
+      if (resolved == null) {
+        // absolute, data: or fragment only
+        matcher.appendReplacement(output, Matcher.quoteReplacement(matcher.group()));
+        continue;
+      }
+
+      String dataUri = embed(resolved, embedded);
+
+      String replacement = dataUri != null ? "url(\"" + dataUri + "\")" : "url(\"" + resolved + "\")";
+
+      matcher.appendReplacement(output, Matcher.quoteReplacement(replacement));
+    }
+
+    matcher.appendTail(output);
+
+    return output.toString();
+  }
+
+  /**
+   * Resolve a relative [url] against the directory of [base]. If [base] is a
+   * remote URL, root relative URLs are resolved against its origin as well.
+   * 
+   * @param base
+   *          web path or URL of the referencing file
+   * @param url
+   * @return the absolute web path, or null if [url] is not relative
+   */
+  public static String resolve(String base, String url) {
+    int originEnd = base.indexOf("://");
+
+    if (originEnd > -1) {
+      originEnd = base.indexOf('/', originEnd + 3);
+
+      String origin = originEnd > -1 ? base.substring(0, originEnd) : base;
+
+      if (url.startsWith("/") && !url.startsWith("//")) {
+        return origin + url;
+      }
+
+      String resolved = resolve(originEnd > -1 ? base.substring(originEnd) : "/", url);
+
+      return resolved != null ? origin + resolved : null;
+    }
+
+    if (url.length() == 0 || url.startsWith("/") || url.startsWith("#") || url.indexOf(':') > -1
+        && url.indexOf(':') < firstIndexOf(url, "/?#")) {
+      return null;
+    }
+
+    // keep the query and fragment as they are
+    int suffixStart = firstIndexOf(url, "?#");
+    String suffix = url.substring(suffixStart);
+    String path = url.substring(0, suffixStart);
+
+    String[] baseSegments = base.substring(0, base.lastIndexOf('/') + 1).split("/");
+
+    StringBuilder resolved = new StringBuilder();
+    List<String> segments = new ArrayList<String>();
+
+    for (String segment : baseSegments) {
+      if (segment.length() > 0) {
+        segments.add(segment);
+      }
+    }
+
+    String[] pathSegments = path.split("/", -1);
+
+    for (int i = 0; i < pathSegments.length; i++) {
+      String segment = pathSegments[i];
+
+      if (segment.equals("..")) {
+        if (!segments.isEmpty()) {
+          segments.remove(segments.size() - 1);
+        }
+      } else if (!segment.equals(".") && (segment.length() > 0 || i == pathSegments.length - 1)) {
+        segments.add(segment);
+      }
+    }
+
+    for (String segment : segments) {
+      resolved.append('/').append(segment);
+    }
+
+    return resolved.toString() + suffix;
+  }
+
+  private static int firstIndexOf(String value, String chars) {
+    for (int i = 0; i < value.length(); i++) {
+      if (chars.indexOf(value.charAt(i)) > -1) {
+        return i;
+      }
+    }
+    return value.length();
+  }
+
+  /**
+   * Returns a data URI for the asset at [path] if it is small enough.
+   * 
+   * @param path
+   * @param embedded
+   * @return the data URI, or null to reference the asset
+   */
+  private String embed(String path, List<File> embedded) {
+    // fragments select part of an asset, e.g. an SVG sprite
+    if (embedMaxBytes <= 0 || firstIndexOf(path, "?#") < path.length()) {
+      return null;
+    }
+
+    String mimeType = MIME_TYPES.get(path.substring(path.lastIndexOf('.') + 1).toLowerCase());
+
+    File file = resolver.getFile(path);
+
+    if (mimeType == null || file == null || !file.isFile() || file.length() > embedMaxBytes) {
+      return null;
+    }
+
+    byte[] data = new byte[(int) file.length()];
+
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        int read = 0;
+        while (read < data.length) {
+          int count = in.read(data, read, data.length - read);
+          if (count < 0) {
+            return null;
+          }
+          read += count;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+
+    embedded.add(file);
+
+    return "data:" + mimeType + ";base64," + encodeBase64(data);
+  }
+
+  private static String encodeBase64(byte[] data) {
+    StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+
+    for (int i = 0; i < data.length; i += 3) {
+      int b0 = data[i] & 0xff;
+      int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+      int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+
+      encoded.append(BASE64[b0 >> 2]);
+      encoded.append(BASE64[((b0 & 0x03) << 4) | (b1 >> 4)]);
+      encoded.append(i + 1 < data.length ? BASE64[((b1 & 0x0f) << 2) | (b2 >> 6)] : '=');
+      encoded.append(i + 2 < data.length ? BASE64[b2 & 0x3f] : '=');
+    }
+
+    return encoded.toString();
+  }
+}
@@ -2,19 +2,83 @@ package org.stirrat.ecm.wsu.filter;
 
 import intradoc.common.ExecutionContext;
 import intradoc.common.SystemUtils;
+import intradoc.data.DataBinder;
+import intradoc.server.Service;
 import intradoc.shared.FilterImplementor;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.stirrat.ecm.wsu.service.WSUServiceHandler;
 import org.ucmtwine.annotation.Filter;
 
 public class WSUFilters {
 
   /**
-   * Filter to clean out the WSU cache folder on startup.
+   * Services after which the content item in the binder may have a new or no
+   * web file.
+   */
+  private static final Set<String> CONTENT_CHANGE_SERVICES = new HashSet<String>(Arrays.asList("CHECKIN_NEW",
+      "CHECKIN_SEL", "CHECKIN_UNIVERSAL", "CHECKIN_SIMILAR", "CHECKIN_ARCHIVE", "UPDATE_DOCINFO", "DELETE_REV",
+      "DELETE_DOC"));
+
+  /**
+   * Filter to clean out the WSU cache folder on startup, and keep it within
+   * its configured limits from then on. Recently used bundles are then
+   * rebuilt in the background, ahead of the first requests for them, and
+   * remote items are revalidated periodically.
    */
   @Filter(event = "extraAfterProvidersStartedInit")
   public int cleanCachedScripts(ExecutionContext ctx) {
     SystemUtils.trace("wsu", "Cleaning WSU cached scripts");
 
+    WSUServiceHandler.startCacheSweeper();
+    WSUServiceHandler.startCacheWarmer();
+    WSUServiceHandler.startRemoteMirror();
+
     return FilterImplementor.CONTINUE;
   }
+
+  /**
+   * Filter to invalidate the bundles which include a content item when it is
+   * checked in, updated or deleted.
+   */
+  @Filter(event = "onEndServiceRequestActions")
+  public int invalidateChangedScripts(ExecutionContext ctx) {
+    if (!(ctx instanceof Service)) {
+      return FilterImplementor.CONTINUE;
+    }
+
+    DataBinder binder = ((Service) ctx).getBinder();
+
+    String service = binder.getLocal("IdcService");
+
+    if (service != null && CONTENT_CHANGE_SERVICES.contains(service)) {
+      invalidateContent(binder);
+    }
+
+    return FilterImplementor.CONTINUE;
+  }
+
+  /**
+   * Filter to invalidate the bundles which include a content item when its
+   * web file is (re)created, e.g. after conversion.
+   */
+  @Filter(event = "postWebfileCreation")
+  public int invalidateConvertedScripts(ExecutionContext ctx) {
+    if (ctx instanceof Service) {
+      invalidateContent(((Service) ctx).getBinder());
+    }
+
+    return FilterImplementor.CONTINUE;
+  }
+
+  private static void invalidateContent(DataBinder binder) {
+    String contentId = binder.getLocal("dDocName");
+
+    if (contentId != null && !contentId.equals("")) {
+      WSUServiceHandler.invalidateContent(contentId);
+    }
+  }
 }
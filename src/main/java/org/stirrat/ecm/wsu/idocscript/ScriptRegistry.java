@@ -0,0 +1,241 @@
+package org.stirrat.ecm.wsu.idocscript;
+
+import intradoc.data.DataBinder;
+import intradoc.data.DataResultSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.WeakHashMap;
+
+/**
+ * The scripts added to a request, indexed by type and group. Each group is
+ * sorted by priority, keeping the order scripts were added for equal
+ * priorities, and a script is only added once per type even if it is added
+ * to several groups.
+ * 
+ * The scripts are also kept in the request's xWSUScripts result set for idoc
+ * script. If the result set is replaced or rows are added to it directly,
+ * the registry is rebuilt from it.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class ScriptRegistry {
+
+  public static final String RESULT_SET = "xWSUScripts";
+
+  private static final String[] FIELDS = new String[] { "type", "script", "group", "sort" };
+
+  // result set field indices
+  private static final int ROW_TYPE = 0;
+
+  private static final int ROW_PATH = 1;
+
+  private static final int ROW_GROUP = 2;
+
+  private static final int ROW_SORT = 3;
+
+  private static final Map<DataBinder, ScriptRegistry> registries = new WeakHashMap<DataBinder, ScriptRegistry>();
+
+  private static final Comparator<Script> BY_PRIORITY = new Comparator<Script>() {
+    public int compare(Script a, Script b) {
+      return a.priority < b.priority ? -1 : a.priority > b.priority ? 1 : 0;
+    }
+  };
+
+  private final DataResultSet resultSet;
+
+  private int rows;
+
+  private final Map<String, Group> groups = new HashMap<String, Group>();
+
+  private final Set<String> added = new HashSet<String>();
+
+  private ScriptRegistry(DataResultSet resultSet) {
+    this.resultSet = resultSet;
+  }
+
+  /**
+   * Returns the registry of the request [binder].
+   * 
+   * @param binder
+   * @return
+   */
+  public static ScriptRegistry get(DataBinder binder) {
+    DataResultSet resultSet = (DataResultSet) binder.getResultSet(RESULT_SET);
+
+    ScriptRegistry registry;
+
+    synchronized (registries) {
+      registry = registries.get(binder);
+    }
+
+    if (registry != null && registry.isCurrent(resultSet)) {
+      return registry;
+    }
+
+    registry = new ScriptRegistry(resultSet);
+    registry.load();
+
+    synchronized (registries) {
+      registries.put(binder, registry);
+    }
+
+    return registry;
+  }
+
+  /**
+   * Add a script and its result set row, unless it was already added.
+   * 
+   * @param binder
+   * @param type
+   * @param path
+   * @param group
+   * @param priority
+   */
+  public static void add(DataBinder binder, int type, String path, String group, long priority) {
+    if (binder.getResultSet(RESULT_SET) == null) {
+      binder.addResultSet(RESULT_SET, new DataResultSet(FIELDS));
+    }
+
+    ScriptRegistry registry = get(binder);
+
+    if (registry.index(type, path, group, priority)) {
+      Vector<String> values = new Vector<String>();
+
+      values.add(Integer.toString(type));
+      values.add(path);
+      values.add(group);
+      values.add(Long.toString(priority));
+
+      registry.resultSet.addRow(values);
+      registry.rows++;
+    }
+  }
+
+  /**
+   * Returns the paths of the scripts in [group], in priority order.
+   * 
+   * @param type
+   * @param group
+   * @return
+   */
+  public List<String> getScripts(int type, String group) {
+    Group scripts = groups.get(getGroupKey(type, group));
+
+    if (scripts == null) {
+      return Collections.emptyList();
+    }
+
+    return scripts.getPaths();
+  }
+
+  private boolean isCurrent(DataResultSet current) {
+    return current == resultSet && (resultSet == null || resultSet.getNumRows() == rows);
+  }
+
+  /**
+   * Index the rows already in the result set.
+   */
+  private void load() {
+    if (resultSet == null || resultSet.isEmpty()) {
+      return;
+    }
+
+    rows = resultSet.getNumRows();
+
+    resultSet.first();
+
+    do {
+      @SuppressWarnings("unchecked")
+      Vector<String> row = resultSet.getCurrentRowValues();
+
+      try {
+        index(Integer.parseInt(row.get(ROW_TYPE)), row.get(ROW_PATH), row.get(ROW_GROUP), parsePriority(row
+            .get(ROW_SORT)));
+      } catch (NumberFormatException e) {
+        // not a row added by addJs/addCss
+      }
+    } while (resultSet.next());
+  }
+
+  /**
+   * @return false if the script was already added
+   */
+  private boolean index(int type, String path, String group, long priority) {
+    if (!added.add(type + ":" + path)) {
+      return false;
+    }
+
+    String key = getGroupKey(type, group);
+    Group scripts = groups.get(key);
+
+    if (scripts == null) {
+      scripts = new Group();
+      groups.put(key, scripts);
+    }
+
+    scripts.add(new Script(path, priority));
+
+    return true;
+  }
+
+  private static long parsePriority(String priority) {
+    if (priority == null || priority.length() == 0) {
+      return 0;
+    }
+    return Long.parseLong(priority.trim());
+  }
+
+  private static String getGroupKey(int type, String group) {
+    return type + ":" + (group != null ? group.toLowerCase() : "");
+  }
+
+  /**
+   * The scripts of a group, sorted when they are next read.
+   */
+  private static class Group {
+    private final List<Script> scripts = new ArrayList<Script>();
+
+    private List<String> paths;
+
+    void add(Script script) {
+      scripts.add(script);
+      paths = null;
+    }
+
+    List<String> getPaths() {
+      if (paths == null) {
+        // the sort is stable, so equal priorities keep the order added
+        List<Script> sorted = new ArrayList<Script>(scripts);
+        Collections.sort(sorted, BY_PRIORITY);
+
+        List<String> sortedPaths = new ArrayList<String>(sorted.size());
+
+        for (Script script : sorted) {
+          sortedPaths.add(script.path);
+        }
+
+        paths = Collections.unmodifiableList(sortedPaths);
+      }
+      return paths;
+    }
+  }
+
+  private static class Script {
+    final String path;
+
+    final long priority;
+
+    Script(String path, long priority) {
+      this.path = path;
+      this.priority = priority;
+    }
+  }
+}
@@ -3,10 +3,8 @@ package org.stirrat.ecm.wsu.idocscript;
 import intradoc.common.ExecutionContext;
 import intradoc.common.LocaleUtils;
 import intradoc.common.ServiceException;
-import intradoc.common.SystemUtils;
 import intradoc.data.DataBinder;
 import intradoc.data.DataException;
-import intradoc.data.DataResultSet;
 import intradoc.data.Workspace;
 import intradoc.provider.Provider;
 import intradoc.provider.Providers;
@@ -19,9 +17,10 @@ import intradoc.shared.UserData;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
+import java.util.regex.Pattern;
 
-import org.apache.commons.lang.StringUtils;
+import org.stirrat.ecm.wsu.cache.BundleManifest;
+import org.stirrat.ecm.wsu.cache.RenderedFragmentCache;
 import org.stirrat.ecm.wsu.service.WSUServiceHandler;
 import org.ucmtwine.annotation.IdocFunction;
 
@@ -32,13 +31,6 @@ import org.ucmtwine.annotation.IdocFunction;
  */
 public class WSUScriptExtensions {
 
-  // result set field indices
-  private static final int SCRIPT_ROW_PATH = 1;
-
-  private static final int SCRIPT_ROW_GROUP = 2;
-
-  private static final int SCRIPT_ROW_TYPE = 0;
-
   /**
    * Environment variable that contains the boolean to instruct whether to
    * combine scripts.
@@ -51,10 +43,74 @@ public class WSUScriptExtensions {
    */
   private static final String ENV_COMPRESS_SCRIPTS = "WSUCompressScripts";
 
+  /**
+   * Environment variable for how scripts are rendered: "separate" (one tag
+   * per file), "combined" (one bundle per group) or "http2" (a few bundles
+   * per group, downloaded in parallel). Defaults to "combined" if
+   * WSUCombineScripts is set, otherwise "separate".
+   */
+  private static final String ENV_RENDER_MODE = "WSURenderMode";
+
+  /**
+   * Environment variable for the maximum size in kilobytes of the sources in
+   * each bundle when rendering in "http2" mode.
+   */
+  private static final String ENV_HTTP2_BUNDLE_SIZE = "WSUHttp2BundleSize";
+
+  /**
+   * Environment variable for how scripts are loaded: "defer", "async",
+   * "module" or blank to block. A single group is configured with
+   * WSUScriptLoading_[group].
+   */
+  private static final String ENV_SCRIPT_LOADING = "WSUScriptLoading";
+
+  /**
+   * Environment variable for the size in bytes at or below which a bundle is
+   * inlined into the page rather than referenced, 0 to never inline.
+   */
+  private static final String ENV_INLINE_MAX_SIZE = "WSUInlineMaxSize";
+
+  /**
+   * Environment variable naming the variable which holds the request's
+   * Content-Security-Policy nonce, added to inlined blocks.
+   */
+  private static final String ENV_CSP_NONCE_VARIABLE = "WSUCspNonceVariable";
+
+  /**
+   * Environment variable for the number of rendered script groups to keep in
+   * memory, 0 to render every time.
+   */
+  private static final String ENV_RENDER_CACHE_SIZE = "WSURenderCacheSize";
+
+  private static final String RENDER_SEPARATE = "separate";
+
+  private static final String RENDER_COMBINED = "combined";
+
+  private static final String RENDER_HTTP2 = "http2";
+
+  private static final String LOADING_DEFER = "defer";
+
+  private static final String LOADING_ASYNC = "async";
+
+  private static final String LOADING_MODULE = "module";
+
   private static final String TAG_TEMPLATE_JS = "<script type=\"text/javascript\" src=\"%s\"%s></script>";
+  private static final String TAG_TEMPLATE_MODULE = "<script type=\"module\" src=\"%s\"%s></script>";
   private static final String TAG_TEMPLATE_CSS = "<link rel=\"stylesheet\" type=\"text/css\" href=\"%s\"%s />";
 
-  private static final String BINDER_RESULT_SET = "xWSUScripts";
+  private static final String TAG_TEMPLATE_INLINE_JS = "<script type=\"text/javascript\"%s>%s</script>";
+  private static final String TAG_TEMPLATE_INLINE_MODULE = "<script type=\"module\"%s>%s</script>";
+  private static final String TAG_TEMPLATE_INLINE_CSS = "<style type=\"text/css\"%s>%s</style>";
+
+  private static final String TAG_TEMPLATE_PRELOAD = "<link rel=\"preload\" href=\"%s\" as=\"%s\" />";
+  private static final String TAG_TEMPLATE_MODULEPRELOAD = "<link rel=\"modulepreload\" href=\"%s\" />";
+
+  private static final String HEADER_TEMPLATE_PRELOAD = "<%s>; rel=preload; as=%s";
+  private static final String HEADER_TEMPLATE_MODULEPRELOAD = "<%s>; rel=modulepreload";
+
+  private static final Pattern CLOSING_TAG = Pattern.compile("</(script|style)", Pattern.CASE_INSENSITIVE);
+
+  private static RenderedFragmentCache renderCache;
 
   @IdocFunction
   public void addJs(String item, String group, Long priority, DataBinder binder) {
@@ -78,6 +134,54 @@ public class WSUScriptExtensions {
     return renderScripts(binder, WSUServiceHandler.TYPE_CSS, group);
   }
 
+  /**
+   * Renders preload hints for the scripts of [group], for the document head.
+   */
+  @IdocFunction
+  public String preloadJs(String group, DataBinder binder) throws IllegalArgumentException, DataException,
+      ServiceException {
+    return renderPreloads(binder, WSUServiceHandler.TYPE_JS, group);
+  }
+
+  /**
+   * Renders preload hints for the stylesheets of [group], for the document
+   * head.
+   */
+  @IdocFunction
+  public String preloadCss(String group, DataBinder binder) throws IllegalArgumentException, DataException,
+      ServiceException {
+    return renderPreloads(binder, WSUServiceHandler.TYPE_CSS, group);
+  }
+
+  /**
+   * Returns the value of a Link header which preloads the stylesheets and
+   * scripts of [group], for 103 Early Hints or the response headers.
+   */
+  @IdocFunction
+  public String preloadHeader(String group, DataBinder binder) throws IllegalArgumentException, DataException,
+      ServiceException {
+    StringBuilder header = new StringBuilder();
+
+    for (int type : new int[] { WSUServiceHandler.TYPE_CSS, WSUServiceHandler.TYPE_JS }) {
+      String as = type == WSUServiceHandler.TYPE_CSS ? "style" : "script";
+      boolean module = type == WSUServiceHandler.TYPE_JS && getScriptLoading(group).equals(LOADING_MODULE);
+
+      for (String url : getScriptUrls(binder, type, group)) {
+        if (header.length() > 0) {
+          header.append(", ");
+        }
+
+        if (module) {
+          header.append(String.format(HEADER_TEMPLATE_MODULEPRELOAD, url));
+        } else {
+          header.append(String.format(HEADER_TEMPLATE_PRELOAD, url, as));
+        }
+      }
+    }
+
+    return header.toString();
+  }
+
   @IdocFunction
   public String combineScripts(String typeString, String itemList, boolean compress, DataBinder binder)
       throws IllegalArgumentException, DataException, ServiceException {
@@ -90,146 +194,437 @@ public class WSUScriptExtensions {
 
     List<String> items = WSUServiceHandler.getCleanItemList(itemList);
 
-    return combineScripts(binder, type, items, "", compress);
+    return combineScripts(type, items, "", compress);
   }
 
   /**
-   * Creates the resultset which stores the script information.
+   * Wrapper for addJavascript/Stylesheet
    * 
    * @param type
    * @param contentId
    * @param group
-   * @param order
+   * @param priority
+   *          rendering sort order, defaults to 0
    */
-  private DataResultSet createScriptsResultSet(DataBinder binder) {
-    String[] fields = new String[] { "type", "script", "group", "sort" };
+  private void addScript(DataBinder binder, int type, String contentId, String group, Long priority) {
+    ScriptRegistry.add(binder, type, contentId, group != null ? group : "", priority != null ? priority : 0);
+  }
 
-    DataResultSet rsItems = new DataResultSet(fields);
+  /**
+   * Wrapper for renderJavascripts/stylesheets
+   * 
+   * @param type
+   * @param group
+   * @return
+   * @throws ServiceException
+   * @throws DataException
+   * @throws IllegalArgumentException
+   */
+  private static String renderScripts(DataBinder binder, int type, String group) throws IllegalArgumentException,
+      DataException, ServiceException {
+    List<String> scripts = getScripts(binder, type, group);
+
+    if (scripts.isEmpty()) {
+      return "";
+    }
+
+    String mode = getRenderMode();
+
+    String loading = type == WSUServiceHandler.TYPE_JS ? getScriptLoading(group) : "";
+
+    boolean compress = SharedObjects.getEnvValueAsBoolean(ENV_COMPRESS_SCRIPTS, false);
+
+    RenderedFragmentCache cache = getRenderCache();
+    String key = null;
+
+    if (cache != null) {
+      key = getRenderKey(type, group, mode, compress, loading, scripts);
+
+      RenderedFragmentCache.Fragment fragment = cache.get(key);
+
+      if (fragment != null && WSUServiceHandler.touchBundles(fragment.getBundles())) {
+        return fragment.getHtml();
+      }
+    }
+
+    // return individual script tags
+    if (mode.equals(RENDER_SEPARATE)) {
+      String output = writeScriptTags(type, scripts, loading);
+
+      if (cache != null) {
+        cache.put(key, output, new ArrayList<BundleManifest.Entry>(0));
+      }
+
+      return output;
+    }
+
+    String nonce = getNonce(binder);
+
+    // return a tag for each bundle
+    StringBuilder output = new StringBuilder();
+
+    List<List<String>> bundles = getBundles(scripts, mode);
+    List<BundleManifest.Entry> entries = new ArrayList<BundleManifest.Entry>(bundles.size());
+
+    // inlined blocks with a nonce differ on every request
+    boolean cacheable = cache != null;
+
+    for (int i = 0; i < bundles.size(); i++) {
+      if (i > 0) {
+        output.append("\n\t");
+      }
+
+      List<String> bundle = bundles.get(i);
+
+      String idClause = String.format(" id=\"wsu-combined-%d-group-%s%s\"", type, group, i > 0 ? "-" + i : "");
+
+      String inline = getInlineContent(bundle, group, type, compress, loading);
+
+      if (inline != null) {
+        output.append(formatInline(nonce, type, inline, idClause, loading));
+        cacheable &= nonce == null;
+      } else {
+        String filePath = WSUServiceHandler.getCombinedScriptsPath(bundle, group, type, compress);
+        output.append(formatTag(type, filePath, idClause, loading));
+      }
+
+      if (cacheable) {
+        BundleManifest.Entry entry = WSUServiceHandler.getBundleEntry(bundle, group, type, compress);
 
-    binder.addResultSet(BINDER_RESULT_SET, rsItems);
+        if (entry != null) {
+          entries.add(entry);
+        } else {
+          cacheable = false;
+        }
+      }
+    }
+
+    if (cacheable) {
+      cache.put(key, output.toString(), entries);
+    }
 
-    return rsItems;
+    return output.toString();
   }
 
   /**
-   * Wrapper for addJavascript/Stylesheet
+   * Returns the key of the rendered scripts in the render cache, made of
+   * everything which changes the HTML.
    * 
    * @param type
-   * @param contentId
    * @param group
-   * @param order
-   * @throws DataException
+   * @param mode
+   * @param compress
+   * @param loading
+   * @param scripts
+   * @return
    */
-  private void addScript(DataBinder binder, int type, String contentId, String group, long order) {
-    DataResultSet rsItems = (DataResultSet) binder.getResultSet(BINDER_RESULT_SET);
+  private static String getRenderKey(int type, String group, String mode, boolean compress, String loading,
+      List<String> scripts) {
+    StringBuilder key = new StringBuilder(64 * (scripts.size() + 1));
 
-    if (rsItems == null) {
-      rsItems = createScriptsResultSet(binder);
+    key.append(type).append(':').append(group).append(':').append(mode).append(':').append(compress);
+    key.append(':').append(loading).append(':').append(SharedObjects.getEnvironmentInt(ENV_INLINE_MAX_SIZE, 0));
+    key.append(':').append(SharedObjects.getEnvironmentInt(ENV_HTTP2_BUNDLE_SIZE, 100));
+
+    for (String script : scripts) {
+      key.append('\n').append(script);
     }
 
-    Vector<String> values = new Vector<String>();
+    return key.toString();
+  }
 
-    values.add(Integer.toString(type));
-    values.add(contentId);
-    values.add(group);
-    values.add(Long.toString(order));
+  /**
+   * Returns the render cache, created on first use from the environment
+   * configuration.
+   * 
+   * @return the cache, or null if disabled
+   */
+  private static RenderedFragmentCache getRenderCache() {
+    synchronized (WSUScriptExtensions.class) {
+      if (renderCache == null) {
+        int maxEntries = SharedObjects.getEnvironmentInt(ENV_RENDER_CACHE_SIZE, 1000);
 
-    rsItems.addRow(values);
+        if (maxEntries <= 0) {
+          return null;
+        }
 
-    binder.addResultSet(BINDER_RESULT_SET, rsItems);
+        renderCache = new RenderedFragmentCache(maxEntries);
+      }
+      return renderCache;
+    }
   }
 
   /**
-   * Wrapper for renderJavascripts/stylesheets
+   * Renders preload hints for the files which [renderScripts] would
+   * reference.
    * 
+   * @param binder
    * @param type
    * @param group
    * @return
    * @throws ServiceException
    * @throws DataException
-   * @throws IllegalArgumentException
    */
-  private static String renderScripts(DataBinder binder, int type, String group) throws IllegalArgumentException,
-      DataException, ServiceException {
-    boolean compress = SharedObjects.getEnvValueAsBoolean(ENV_COMPRESS_SCRIPTS, false);
+  private static String renderPreloads(DataBinder binder, int type, String group) throws DataException,
+      ServiceException {
+    boolean module = type == WSUServiceHandler.TYPE_JS && getScriptLoading(group).equals(LOADING_MODULE);
 
-    DataResultSet rsItems = (DataResultSet) binder.getResultSet(BINDER_RESULT_SET);
+    StringBuilder output = new StringBuilder();
 
-    if (rsItems == null || rsItems.isEmpty()) {
-      SystemUtils.trace("system", "Resultset was empty.");
-      return "";
+    for (String url : getScriptUrls(binder, type, group)) {
+      if (type == WSUServiceHandler.TYPE_CSS) {
+        output.append(String.format(TAG_TEMPLATE_PRELOAD, url, "style"));
+      } else if (module) {
+        output.append(String.format(TAG_TEMPLATE_MODULEPRELOAD, url));
+      } else {
+        output.append(String.format(TAG_TEMPLATE_PRELOAD, url, "script"));
+      }
+      output.append("\n\t");
     }
 
-    List<String> scripts = new ArrayList<String>();
+    return output.toString();
+  }
 
-    rsItems.first();
+  /**
+   * Returns the web paths which [renderScripts] references for the scripts
+   * of [group]: the scripts themselves, or the bundles which combine them,
+   * depending on the render mode. Inlined bundles are left out.
+   * 
+   * @param binder
+   * @param type
+   * @param group
+   * @return
+   * @throws DataException
+   * @throws ServiceException
+   */
+  private static List<String> getScriptUrls(DataBinder binder, int type, String group) throws DataException,
+      ServiceException {
+    List<String> scripts = getScripts(binder, type, group);
 
-    do {
-      @SuppressWarnings("unchecked")
-      Vector<String> scriptRow = rsItems.getCurrentRowValues();
+    String mode = getRenderMode();
 
-      if (scriptRow.get(SCRIPT_ROW_TYPE).equals(Integer.toString(type))
-          && scriptRow.get(SCRIPT_ROW_GROUP).equalsIgnoreCase(group)) {
-        scripts.add(scriptRow.get(SCRIPT_ROW_PATH));
-      }
-    } while (rsItems.next());
+    if (scripts.isEmpty() || mode.equals(RENDER_SEPARATE)) {
+      return scripts;
+    }
+
+    boolean compress = SharedObjects.getEnvValueAsBoolean(ENV_COMPRESS_SCRIPTS, false);
+    String loading = type == WSUServiceHandler.TYPE_JS ? getScriptLoading(group) : "";
+
+    List<String> urls = new ArrayList<String>();
 
-    if (scripts.size() > 0) {
-      // return single script with combined content
-      if (SharedObjects.getEnvValueAsBoolean(ENV_COMBINE_SCRIPTS, false)) {
-        return combineScripts(binder, type, scripts, group, compress);
+    for (List<String> bundle : getBundles(scripts, mode)) {
+      if (getInlineContent(bundle, group, type, compress, loading) == null) {
+        urls.add(WSUServiceHandler.getCombinedScriptsPath(bundle, group, type, compress));
       }
+    }
+
+    return urls;
+  }
 
-      // return individual script tags
-      return writeScriptTags(type, scripts);
+  /**
+   * Split [scripts] into the bundles rendered in [mode]: a single bundle, or
+   * several which download in parallel.
+   * 
+   * @param scripts
+   * @param mode
+   *          combined or http2
+   * @return
+   */
+  private static List<List<String>> getBundles(List<String> scripts, String mode) {
+    if (mode.equals(RENDER_HTTP2)) {
+      long maxBytes = SharedObjects.getEnvironmentInt(ENV_HTTP2_BUNDLE_SIZE, 100) * 1024L;
+      return WSUServiceHandler.splitItemList(scripts, maxBytes);
     }
 
-    return "";
+    List<List<String>> bundles = new ArrayList<List<String>>(1);
+    bundles.add(scripts);
+    return bundles;
   }
 
   /**
-   * Simple wrapper to the WSU_COMBINE_SCRIPTS service
+   * Returns the contents of a bundle to inline into the page, if it is small
+   * enough. Deferred and async scripts are never inlined, as inline scripts
+   * run immediately.
    * 
+   * @param bundle
+   * @param group
    * @param type
-   *          Content type: text/css or text/javascript
-   * @param items
-   *          Comma separated list of content items
    * @param compress
-   *          Whether to compress the combined result
-   * @return Html script tag
+   * @param loading
+   * @return the contents, or null to reference the bundle
    * @throws ServiceException
-   * @throws DataException
    */
-  private static String combineScripts(DataBinder binder, int type, List<String> items, String group, boolean compress)
-      throws IllegalArgumentException, DataException, ServiceException {
-    DataBinder serviceBinder = new DataBinder();
-    serviceBinder.putLocal("IdcService", "WSU_COMBINE_SCRIPTS");
+  private static String getInlineContent(List<String> bundle, String group, int type, boolean compress,
+      String loading) throws ServiceException {
+    long maxBytes = SharedObjects.getEnvironmentInt(ENV_INLINE_MAX_SIZE, 0);
+
+    if (maxBytes <= 0 || loading.equals(LOADING_DEFER) || loading.equals(LOADING_ASYNC)) {
+      return null;
+    }
+
+    return WSUServiceHandler.getInlineScripts(bundle, group, type, compress, maxBytes);
+  }
+
+  /**
+   * Returns the request's CSP nonce.
+   * 
+   * @param binder
+   * @return the nonce, or null if there is none
+   */
+  private static String getNonce(DataBinder binder) {
+    String nonceVariable = SharedObjects.getEnvironmentValue(ENV_CSP_NONCE_VARIABLE);
+
+    if (nonceVariable == null || nonceVariable.length() == 0) {
+      nonceVariable = "cspNonce";
+    }
+
+    String nonce = binder.getLocal(nonceVariable);
+
+    return nonce != null && nonce.length() > 0 ? nonce : null;
+  }
+
+  /**
+   * Format an inline block, with the request's CSP nonce if there is one.
+   * 
+   * @param nonce
+   *          CSP nonce, or null
+   * @param type
+   * @param content
+   * @param attributes
+   *          extra attributes, with a leading space
+   * @param loading
+   *          module or blank
+   * @return
+   */
+  private static String formatInline(String nonce, int type, String content, String attributes, String loading) {
+    if (nonce != null) {
+      attributes += " nonce=\"" + nonce.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;") + "\"";
+    }
+
+    // a closing tag inside the content would end the block early
+    content = CLOSING_TAG.matcher(content).replaceAll("<\\\\/$1");
+
+    if (type == WSUServiceHandler.TYPE_CSS) {
+      return String.format(TAG_TEMPLATE_INLINE_CSS, attributes, content);
+    }
+
+    if (loading.equals(LOADING_MODULE)) {
+      return String.format(TAG_TEMPLATE_INLINE_MODULE, attributes, content);
+    }
 
-    String dUser = binder.getLocal("dUser");
+    return String.format(TAG_TEMPLATE_INLINE_JS, attributes, content);
+  }
+
+  /**
+   * Returns the paths of the scripts added to [group], in priority order.
+   * 
+   * @param binder
+   * @param type
+   * @param group
+   * @return
+   */
+  private static List<String> getScripts(DataBinder binder, int type, String group) {
+    return ScriptRegistry.get(binder).getScripts(type, group);
+  }
+
+  /**
+   * Returns the configured render mode.
+   * 
+   * @return
+   */
+  private static String getRenderMode() {
+    String mode = SharedObjects.getEnvironmentValue(ENV_RENDER_MODE);
 
-    if (dUser == null || dUser.equals("")) {
-      dUser = "sysadmin";
+    if (mode != null) {
+      mode = mode.toLowerCase().trim();
+
+      if (mode.equals(RENDER_SEPARATE) || mode.equals(RENDER_COMBINED) || mode.equals(RENDER_HTTP2)) {
+        return mode;
+      }
+    }
+
+    return SharedObjects.getEnvValueAsBoolean(ENV_COMBINE_SCRIPTS, false) ? RENDER_COMBINED : RENDER_SEPARATE;
+  }
+
+  /**
+   * Returns how the scripts of [group] are loaded: defer, async, module or
+   * blank to block. Groups match case insensitively, so the setting is named
+   * with the group in lower case.
+   * 
+   * @param group
+   * @return
+   */
+  private static String getScriptLoading(String group) {
+    String loading = null;
+
+    if (group != null && group.length() > 0) {
+      loading = SharedObjects.getEnvironmentValue(ENV_SCRIPT_LOADING + "_" + group.toLowerCase().trim());
+    }
+
+    if (loading == null || loading.length() == 0) {
+      loading = SharedObjects.getEnvironmentValue(ENV_SCRIPT_LOADING);
+    }
+
+    if (loading == null) {
+      return "";
     }
 
-    if (compress) {
-      serviceBinder.putLocal("compress", "true");
-    } else {
-      serviceBinder.putLocal("compress", "false");
+    loading = loading.toLowerCase().trim();
+
+    if (loading.equals(LOADING_DEFER) || loading.equals(LOADING_ASYNC) || loading.equals(LOADING_MODULE)) {
+      return loading;
     }
 
-    serviceBinder.putLocal("items", StringUtils.join(items, ","));
+    return "";
+  }
 
+  /**
+   * Format the tag for a single file.
+   * 
+   * @param type
+   * @param url
+   * @param attributes
+   *          extra attributes, with a leading space
+   * @param loading
+   *          defer, async, module or blank
+   * @return
+   */
+  private static String formatTag(int type, String url, String attributes, String loading) {
     if (type == WSUServiceHandler.TYPE_CSS) {
-      serviceBinder.putLocal("type", "css");
-    } else {
-      serviceBinder.putLocal("type", "js");
+      return String.format(TAG_TEMPLATE_CSS, url, attributes);
     }
 
-    serviceBinder.putLocal("group", group);
+    // module scripts are deferred without an attribute
+    if (loading.equals(LOADING_MODULE)) {
+      return String.format(TAG_TEMPLATE_MODULE, url, attributes);
+    }
 
-    executeService(serviceBinder, dUser, false);
+    if (loading.length() > 0) {
+      attributes += " " + loading;
+    }
 
-    String filePath = serviceBinder.getLocal("filePath");
+    return String.format(TAG_TEMPLATE_JS, url, attributes);
+  }
+
+  /**
+   * Resolves the combined (and optionally compressed) file for [items] in
+   * process and returns the tag which references it. This avoids the nested
+   * WSU_COMBINE_SCRIPTS service call, which is kept for remote callers.
+   * 
+   * @param type
+   *          Content type: text/css or text/javascript
+   * @param items
+   *          List of content item paths
+   * @param group
+   *          The compression group
+   * @param compress
+   *          Whether to compress the combined result
+   * @return Html script tag
+   * @throws ServiceException
+   */
+  private static String combineScripts(int type, List<String> items, String group, boolean compress)
+      throws ServiceException {
+    String filePath = WSUServiceHandler.getCombinedScriptsPath(items, group, type, compress);
 
     String groupClause = String.format(" id=\"wsu-combined-%d-group-%s\"", type, group);
 
@@ -247,29 +642,30 @@ public class WSUScriptExtensions {
    *          Content type: text/css or text/javascript
    * @param items
    *          Comma separated list of content items
-   * @param compress
-   *          Whether to compress the combined result
+   * @param loading
+   *          defer, async, module or blank
    * @return Html script tags
    */
-  private static String writeScriptTags(int type, List<String> items) {
-    String output = "";
+  private static String writeScriptTags(int type, List<String> items, String loading) {
+    StringBuilder output = new StringBuilder(items.size() * 80);
 
     for (String item : items) {
-
-      if (type == WSUServiceHandler.TYPE_CSS) {
-        output += String.format(TAG_TEMPLATE_CSS, item, "") + "\n\t";
-      } else {
-        output += String.format(TAG_TEMPLATE_JS, item, "") + "\n\t";
-      }
+      output.append(formatTag(type, item, "", loading)).append("\n\t");
     }
 
-    return output;
+    return output.toString();
   }
 
   /**
    * Execute a service call based on the data in the binder using the
    * credentials of the supplied user
+   * 
+   * @deprecated the script functions no longer run WSU_COMBINE_SCRIPTS as a
+   *             nested service; use
+   *             {@link WSUServiceHandler#getCombinedScriptsPath} to build a
+   *             bundle directly.
    */
+  @Deprecated
   public static void executeService(DataBinder binder, String userName, boolean suppressServiceError)
       throws DataException, ServiceException {
 
@@ -331,7 +727,11 @@ public class WSUScriptExtensions {
   /**
    * Obtain information about a user. Only the 'userName' parameter must be
    * non-null.
+   * 
+   * @deprecated no longer used by the script functions; kept for components
+   *             which call it.
    */
+  @Deprecated
   public static UserData getFullUserData(String userName, ExecutionContext cxt, Workspace ws) throws DataException,
       ServiceException {
     if (ws == null)
@@ -345,7 +745,10 @@ public class WSUScriptExtensions {
    * Get the current workspace
    * 
    * @return
+   * @deprecated no longer used by the script functions; kept for components
+   *             which call it.
    */
+  @Deprecated
   public static Workspace getSystemWorkspace() {
     Workspace workspace = null;
     Provider wsProvider = Providers.getProvider("SystemDatabase");
@@ -353,4 +756,4 @@ public class WSUScriptExtensions {
       workspace = (Workspace) wsProvider.getProvider();
     return workspace;
   }
-}
\ No newline at end of file
+}
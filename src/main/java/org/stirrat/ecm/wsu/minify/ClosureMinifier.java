@@ -0,0 +1,141 @@
+package org.stirrat.ecm.wsu.minify;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.stirrat.ecm.wsu.service.WSUServiceHandler;
+
+import com.google.javascript.jscomp.CompilationLevel;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.Result;
+import com.google.javascript.jscomp.SourceMap;
+import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.jscomp.WarningLevel;
+
+/**
+ * Minifies scripts with the Closure Compiler. Stylesheets are passed to
+ * [cssMinifier].
+ * 
+ * Only WHITESPACE_ONLY and SIMPLE_OPTIMIZATIONS are supported, as
+ * ADVANCED_OPTIMIZATIONS renames across files and needs externs for every
+ * page which uses the bundle.
+ * 
+ * A Compiler holds the state of a single compilation so one is created per
+ * source, but the options are configured once per thread and reused.
+ * 
+ * Source maps are produced for scripts only.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class ClosureMinifier implements SourceMapMinifier {
+
+  private static final List<SourceFile> NO_EXTERNS = Collections.emptyList();
+
+  static {
+    // errors are reported through the result
+    Compiler.setLoggingLevel(Level.OFF);
+  }
+
+  private final CompilationLevel level;
+
+  private final Minifier cssMinifier;
+
+  private final ThreadLocal<CompilerOptions> options = new ThreadLocal<CompilerOptions>() {
+    @Override
+    protected CompilerOptions initialValue() {
+      return createOptions(false);
+    }
+  };
+
+  private final ThreadLocal<CompilerOptions> sourceMapOptions = new ThreadLocal<CompilerOptions>() {
+    @Override
+    protected CompilerOptions initialValue() {
+      return createOptions(true);
+    }
+  };
+
+  /**
+   * @param level
+   *          WHITESPACE_ONLY or SIMPLE_OPTIMIZATIONS
+   * @param cssMinifier
+   *          minifier for stylesheets
+   */
+  public ClosureMinifier(CompilationLevel level, Minifier cssMinifier) {
+    if (level == CompilationLevel.ADVANCED_OPTIMIZATIONS) {
+      throw new IllegalArgumentException("ADVANCED_OPTIMIZATIONS is not supported");
+    }
+
+    this.level = level;
+    this.cssMinifier = cssMinifier;
+  }
+
+  private CompilerOptions createOptions(boolean sourceMap) {
+    CompilerOptions options = new CompilerOptions();
+    level.setOptionsForCompilationLevel(options);
+    WarningLevel.QUIET.setOptionsForWarningLevel(options);
+
+    if (sourceMap) {
+      // the map is collected from the compiler, never written to this path
+      options.setSourceMapOutputPath("bundle.map");
+      options.setSourceMapFormat(SourceMap.Format.V3);
+    }
+
+    return options;
+  }
+
+  public String getName() {
+    return "closure-r2079:" + level.name() + "+" + cssMinifier.getName();
+  }
+
+  public String minify(String content, int type, String sourceName) throws IOException {
+    if (type != WSUServiceHandler.TYPE_JS) {
+      return cssMinifier.minify(content, type, sourceName);
+    }
+
+    return compile(content, sourceName, options.get()).toSource();
+  }
+
+  public MinifiedSource minifyWithSourceMap(String content, int type, String sourceUrl) throws IOException {
+    if (type != WSUServiceHandler.TYPE_JS) {
+      return new MinifiedSource(cssMinifier.minify(content, type, sourceUrl), null);
+    }
+
+    Compiler compiler = compile(content, sourceUrl, sourceMapOptions.get());
+
+    String minified = compiler.toSource();
+
+    StringBuilder map = new StringBuilder();
+    compiler.getSourceMap().appendTo(map, sourceUrl);
+
+    return new MinifiedSource(minified, map.toString());
+  }
+
+  private Compiler compile(String content, String sourceName, CompilerOptions options) throws IOException {
+    Compiler compiler = new Compiler();
+
+    // compile on this thread rather than a new thread per source
+    compiler.disableThreads();
+
+    Result result;
+
+    try {
+      result = compiler.compile(NO_EXTERNS, Collections.singletonList(SourceFile.fromCode(sourceName, content)),
+          options);
+    } catch (RuntimeException e) {
+      // internal compiler errors are rethrown as RuntimeException
+      IOException ioe = new IOException("Closure Compiler failed: " + sourceName + ": " + e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+
+    if (!result.success) {
+      throw new IOException("Closure Compiler failed: " + sourceName + ": "
+          + (result.errors.length > 0 ? result.errors[0].toString() : "unknown error"));
+    }
+
+    return compiler;
+  }
+}
@@ -0,0 +1,31 @@
+package org.stirrat.ecm.wsu.minify;
+
+/**
+ * Minified content and, if the minifier produced one, its source map.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class MinifiedSource {
+
+  private final String content;
+
+  private final String sourceMap;
+
+  /**
+   * @param content
+   * @param sourceMap
+   *          version 3 source map, or null
+   */
+  public MinifiedSource(String content, String sourceMap) {
+    this.content = content;
+    this.sourceMap = sourceMap;
+  }
+
+  public String getContent() {
+    return content;
+  }
+
+  public String getSourceMap() {
+    return sourceMap;
+  }
+}
@@ -0,0 +1,34 @@
+package org.stirrat.ecm.wsu.minify;
+
+import java.io.IOException;
+
+/**
+ * Minifies the content of a single script or stylesheet. Implementations are
+ * shared between bundles and build threads, so must be thread safe.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public interface Minifier {
+
+  /**
+   * Identifies the minifier and its settings. Included in bundle keys, so
+   * changing settings produces new bundles.
+   * 
+   * @return
+   */
+  String getName();
+
+  /**
+   * Minify [content].
+   * 
+   * @param content
+   * @param type
+   *          WSUServiceHandler.TYPE_JS or WSUServiceHandler.TYPE_CSS
+   * @param sourceName
+   *          name of the source, used in error messages
+   * @return the minified content
+   * @throws IOException
+   *           if the content could not be minified
+   */
+  String minify(String content, int type, String sourceName) throws IOException;
+}
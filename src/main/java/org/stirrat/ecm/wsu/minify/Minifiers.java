@@ -0,0 +1,54 @@
+package org.stirrat.ecm.wsu.minify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.javascript.jscomp.CompilationLevel;
+
+/**
+ * The available minifiers, by the name used in the environment
+ * configuration.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public final class Minifiers {
+
+  public static final String YUI = "yui";
+
+  public static final String CLOSURE_WHITESPACE = "closure-whitespace";
+
+  public static final String CLOSURE_SIMPLE = "closure-simple";
+
+  private static final Map<String, Minifier> minifiers = new HashMap<String, Minifier>();
+
+  static {
+    Minifier yui = new YuiMinifier(-1, false);
+
+    minifiers.put(YUI, yui);
+    minifiers.put(CLOSURE_WHITESPACE, new ClosureMinifier(CompilationLevel.WHITESPACE_ONLY, yui));
+    minifiers.put(CLOSURE_SIMPLE, new ClosureMinifier(CompilationLevel.SIMPLE_OPTIMIZATIONS, yui));
+  }
+
+  private Minifiers() {
+  }
+
+  /**
+   * @param name
+   *          yui, closure-whitespace or closure-simple
+   * @return the minifier, or null if [name] is unknown
+   */
+  public static Minifier get(String name) {
+    if (name == null) {
+      return null;
+    }
+
+    return minifiers.get(name.toLowerCase().trim());
+  }
+
+  /**
+   * @return the default minifier
+   */
+  public static Minifier getDefault() {
+    return minifiers.get(YUI);
+  }
+}
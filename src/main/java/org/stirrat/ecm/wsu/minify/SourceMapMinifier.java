@@ -0,0 +1,26 @@
+package org.stirrat.ecm.wsu.minify;
+
+import java.io.IOException;
+
+/**
+ * A minifier which can also produce a source map of its output.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public interface SourceMapMinifier extends Minifier {
+
+  /**
+   * Minify [content] and map the output back to it.
+   * 
+   * @param content
+   * @param type
+   *          WSUServiceHandler.TYPE_JS or WSUServiceHandler.TYPE_CSS
+   * @param sourceUrl
+   *          URL of the source, referenced by the source map
+   * @return the minified content, with a null source map if none could be
+   *         produced for [type]
+   * @throws IOException
+   *           if the content could not be minified
+   */
+  MinifiedSource minifyWithSourceMap(String content, int type, String sourceUrl) throws IOException;
+}
@@ -0,0 +1,84 @@
+package org.stirrat.ecm.wsu.minify;
+
+import intradoc.common.SystemUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.stirrat.ecm.wsu.service.WSUServiceHandler;
+
+import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
+
+/**
+ * Minifies scripts and stylesheets with the YUI Compressor.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class YuiMinifier implements Minifier {
+
+  private final int linebreakpos;
+
+  private final boolean munge;
+
+  /**
+   * Traces warnings and fails on errors, rather than the compressor writing
+   * to stderr. Holds no state, so is shared by every compression.
+   */
+  private static final ErrorReporter REPORTER = new ErrorReporter() {
+    public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+      SystemUtils.trace("wsu", "YUI warning: line " + line + ": " + message);
+    }
+
+    public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+      throw new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+    }
+
+    public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource,
+        int lineOffset) {
+      return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+    }
+  };
+
+  /**
+   * @param linebreakpos
+   *          column after which to insert a line break, -1 for none
+   * @param munge
+   *          true to shorten local variable names
+   */
+  public YuiMinifier(int linebreakpos, boolean munge) {
+    this.linebreakpos = linebreakpos;
+    this.munge = munge;
+  }
+
+  public String getName() {
+    return "yui-2.4.7:munge=" + munge + ":linebreak=" + linebreakpos;
+  }
+
+  public String minify(String content, int type, String sourceName) throws IOException {
+    StringWriter sw = new StringWriter();
+
+    StringReader in = new StringReader(content);
+
+    try {
+      if (type == WSUServiceHandler.TYPE_JS) {
+        JavaScriptCompressor compressor = new JavaScriptCompressor(in, REPORTER);
+        compressor.compress(sw, linebreakpos, munge, false, false, false);
+
+      } else if (type == WSUServiceHandler.TYPE_CSS) {
+        CssCompressor compressor = new CssCompressor(in);
+        compressor.compress(sw, linebreakpos);
+      }
+
+    } catch (EvaluatorException e) {
+      IOException ioe = new IOException("YUI Compressor failed: " + sourceName + ": " + e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+
+    return sw.toString();
+  }
+}
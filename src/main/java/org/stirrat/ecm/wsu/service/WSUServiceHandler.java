@@ -6,6 +6,7 @@ import intradoc.common.ServiceException;
 import intradoc.common.SystemUtils;
 import intradoc.data.DataBinder;
 import intradoc.data.DataException;
+import intradoc.data.DataStreamWrapper;
 import intradoc.data.Workspace;
 import intradoc.provider.Provider;
 import intradoc.provider.Providers;
@@ -16,14 +17,15 @@ import intradoc.server.UserStorage;
 import intradoc.shared.SharedObjects;
 import intradoc.shared.UserData;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
@@ -31,17 +33,52 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Adler32;
 import java.util.zip.Checksum;
-
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.stirrat.ecm.wsu.cache.BuildCoordinator;
+import org.stirrat.ecm.wsu.cache.BundleContent;
+import org.stirrat.ecm.wsu.cache.BundleDefinition;
+import org.stirrat.ecm.wsu.cache.BundleFileWriter;
+import org.stirrat.ecm.wsu.cache.BundleKey;
+import org.stirrat.ecm.wsu.cache.BundleManifest;
+import org.stirrat.ecm.wsu.cache.BundleServer;
+import org.stirrat.ecm.wsu.cache.BundleSegments;
+import org.stirrat.ecm.wsu.cache.BundleSourceMap;
+import org.stirrat.ecm.wsu.cache.BundleStore;
+import org.stirrat.ecm.wsu.cache.BundleWarmer;
+import org.stirrat.ecm.wsu.cache.CacheSweeper;
+import org.stirrat.ecm.wsu.cache.FileBundleStore;
+import org.stirrat.ecm.wsu.cache.MinifiedSourceCache;
+import org.stirrat.ecm.wsu.cache.PackBundleStore;
+import org.stirrat.ecm.wsu.cache.RemoteSourceMirror;
+import org.stirrat.ecm.wsu.cache.SourceDependencies;
+import org.stirrat.ecm.wsu.css.CssImportFlattener;
+import org.stirrat.ecm.wsu.css.CssUrlRewriter;
+import org.stirrat.ecm.wsu.minify.MinifiedSource;
+import org.stirrat.ecm.wsu.minify.Minifier;
+import org.stirrat.ecm.wsu.minify.Minifiers;
+import org.stirrat.ecm.wsu.minify.SourceMapMinifier;
 import org.ucmtwine.annotation.Binder;
 import org.ucmtwine.annotation.ServiceMethod;
 
-import com.yahoo.platform.yui.compressor.CssCompressor;
-import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
-
 public class WSUServiceHandler {
 
   public static final String COMBINE_SERVICE_NAME = "WSU_COMBINE_SCRIPTS";
@@ -51,196 +88,1861 @@ public class WSUServiceHandler {
   public static final String cacheDir = "resources/wsu/";
 
   /**
-   * WSU_COMBINE_SCRIPTS
+   * Encoding of source files and bundles.
+   */
+  public static final Charset charset = Charset.forName("UTF-8");
+
+  /**
+   * Environment variable for the maximum number of bundles held in the
+   * in-memory manifest.
+   */
+  private static final String ENV_MANIFEST_MAX_ENTRIES = "WSUManifestMaxEntries";
+
+  /**
+   * Environment variable for the number of seconds before a manifest entry is
+   * revalidated against the filesystem, 0 to disable.
+   */
+  private static final String ENV_MANIFEST_REVALIDATE_INTERVAL = "WSUManifestRevalidateInterval";
+
+  /**
+   * Environment variable to serve the previous copy of a bundle while another
+   * request rebuilds it, rather than waiting for the rebuild.
+   */
+  private static final String ENV_SERVE_STALE = "WSUServeStaleWhileRebuilding";
+
+  /**
+   * Environment variable for the maximum number of minified source files held
+   * in memory.
+   */
+  private static final String ENV_MINIFIED_CACHE_MAX_ENTRIES = "WSUMinifiedCacheMaxEntries";
+
+  /**
+   * Environment variable to read and compress the sources of a bundle
+   * concurrently.
+   */
+  private static final String ENV_PARALLEL_BUILD = "WSUParallelBuild";
+
+  /**
+   * Environment variable for the number of threads used by parallel builds,
+   * shared by all bundles.
+   */
+  private static final String ENV_BUILD_THREADS = "WSUBuildThreads";
+
+  /**
+   * Environment variable for the number of seconds a request waits for
+   * another request's build of the same bundle before failing.
+   */
+  private static final String ENV_BUILD_TIMEOUT = "WSUBuildTimeout";
+
+  /**
+   * Environment variable to write a .gz copy next to each bundle.
+   */
+  private static final String ENV_PRECOMPRESS_GZIP = "WSUPrecompressGzip";
+
+  /**
+   * Environment variable for the gzip compression level, 1 (fastest) to 9
+   * (smallest).
+   */
+  private static final String ENV_GZIP_LEVEL = "WSUGzipLevel";
+
+  /**
+   * Environment variable to add a hash of the content to bundle filenames, so
+   * they can be cached by clients indefinitely.
+   */
+  private static final String ENV_CONTENT_HASH_FILENAMES = "WSUContentHashFilenames";
+
+  /**
+   * Environment variable for the number of seconds a superseded content hashed
+   * bundle is kept for pages which still reference it.
+   */
+  private static final String ENV_CONTENT_HASH_GRACE_PERIOD = "WSUContentHashGracePeriod";
+
+  /**
+   * Environment variable for the minifier used by all groups: yui,
+   * closure-whitespace or closure-simple. A single group is configured with
+   * WSUMinifier_[group].
+   */
+  private static final String ENV_MINIFIER = "WSUMinifier";
+
+  /**
+   * Environment variable to write a source map next to each bundle.
+   */
+  private static final String ENV_SOURCE_MAPS = "WSUSourceMaps";
+
+  /**
+   * Environment variable to rewrite relative url() references in stylesheets
+   * so they resolve from the bundle.
+   */
+  private static final String ENV_CSS_REWRITE_URLS = "WSUCssRewriteUrls";
+
+  /**
+   * Environment variable for the size in bytes at or below which images and
+   * fonts referenced by stylesheets are embedded as data URIs, 0 to disable.
+   */
+  private static final String ENV_CSS_EMBED_MAX_SIZE = "WSUCssEmbedMaxSize";
+
+  /**
+   * Environment variable to combine stylesheets imported with @import into
+   * the bundle.
+   */
+  private static final String ENV_CSS_FLATTEN_IMPORTS = "WSUCssFlattenImports";
+
+  /**
+   * Environment variable to reference bundles through the WSU_SERVE_BUNDLE
+   * service rather than the weblayout.
+   */
+  private static final String ENV_SERVE_FROM_SERVICE = "WSUServeFromService";
+
+  /**
+   * Environment variable for the total size in megabytes of the bundles
+   * WSU_SERVE_BUNDLE holds in memory.
+   */
+  private static final String ENV_SERVE_MEMORY_SIZE = "WSUServeMemorySize";
+
+  /**
+   * Environment variable for where bundles are kept: "file" for a file per
+   * bundle in the weblayout, or "pack" for a single pack file served by
+   * WSU_SERVE_BUNDLE.
+   */
+  private static final String ENV_BUNDLE_STORE = "WSUBundleStore";
+
+  /**
+   * Environment variable for the comma separated hosts which remote (http and
+   * https) items may be downloaded from. Remote items are skipped if blank.
+   */
+  private static final String ENV_REMOTE_HOSTS = "WSURemoteHosts";
+
+  /**
+   * Environment variable for the milliseconds to wait when connecting to the
+   * host of a remote item.
+   */
+  private static final String ENV_REMOTE_CONNECT_TIMEOUT = "WSURemoteConnectTimeout";
+
+  /**
+   * Environment variable for the milliseconds to wait for data when
+   * downloading a remote item.
+   */
+  private static final String ENV_REMOTE_READ_TIMEOUT = "WSURemoteReadTimeout";
+
+  /**
+   * Environment variable for the size in kilobytes of the largest remote item
+   * to download.
+   */
+  private static final String ENV_REMOTE_MAX_SIZE = "WSURemoteMaxSize";
+
+  /**
+   * Environment variable for the interval in seconds between checks that
+   * remote items have not changed.
+   */
+  private static final String ENV_REMOTE_REVALIDATE_INTERVAL = "WSURemoteRevalidateInterval";
+
+  /**
+   * Environment variable for the maximum total size of the cache directory in
+   * megabytes, 0 for no limit.
+   */
+  private static final String ENV_CACHE_MAX_SIZE = "WSUCacheMaxSize";
+
+  /**
+   * Environment variable for the maximum number of bundles in the cache
+   * directory, 0 for no limit.
+   */
+  private static final String ENV_CACHE_MAX_FILES = "WSUCacheMaxFiles";
+
+  /**
+   * Environment variable for the number of seconds a bundle may go unused
+   * before it is removed, 0 for no limit.
+   */
+  private static final String ENV_CACHE_MAX_AGE = "WSUCacheMaxAge";
+
+  /**
+   * Environment variable for the number of seconds between cache sweeps, 0
+   * to only sweep on startup.
+   */
+  private static final String ENV_CACHE_SWEEP_INTERVAL = "WSUCacheSweepInterval";
+
+  /**
+   * Environment variable for the number of recently used bundles rebuilt on
+   * startup, 0 to disable.
+   */
+  private static final String ENV_PREWARM_MAX_BUNDLES = "WSUPrewarmMaxBundles";
+
+  /**
+   * Environment variable for the milliseconds to pause between bundles when
+   * rebuilding on startup.
+   */
+  private static final String ENV_PREWARM_THROTTLE = "WSUPrewarmThrottle";
+
+  /**
+   * How often (ms) the bundles in use are saved for the next startup.
+   */
+  private static final long PREWARM_SAVE_INTERVAL = 5 * 60 * 1000L;
+
+  /**
+   * Environment variable to rebuild bundles in the background as soon as one
+   * of their items is checked in, rather than on the next request.
+   */
+  private static final String ENV_REBUILD_ON_CHANGE = "WSURebuildOnChange";
+
+  /**
+   * Temporary files older than this (ms) were abandoned by a failed write.
+   */
+  private static final long TEMP_FILE_MAX_AGE = 60 * 60 * 1000L;
+
+  private static BundleManifest manifest;
+
+  private static Map<String, BundleSegments> segmentCache;
+
+  private static CacheSweeper sweeper;
+
+  private static RemoteSourceMirror remoteMirror;
+
+  private static BundleServer bundleServer;
+
+  private static BundleStore bundleStore;
+
+  private static Method setHttpHeaderMethod;
+
+  private static boolean setHttpHeaderChecked;
+
+  /**
+   * Superseded content hashed bundles and when they were first seen.
+   */
+  private static final ConcurrentMap<String, Long> retiredBundles = new ConcurrentHashMap<String, Long>();
+
+  private static ExecutorService buildExecutor;
+
+  private static ExecutorService rebuildExecutor;
+
+  /**
+   * Set on the threads of the build executor.
+   */
+  private static final ThreadLocal<Boolean> buildThread = new ThreadLocal<Boolean>();
+
+  private static MinifiedSourceCache minifiedSources;
+
+  private static BuildCoordinator builds;
+
+  private static final CssUrlRewriter.AssetResolver ASSET_RESOLVER = new CssUrlRewriter.AssetResolver() {
+    public File getFile(String path) {
+      // assets are not downloaded, remote references are left as they are
+      return RemoteSourceMirror.isRemote(path) ? null : getItemFile(path);
+    }
+  };
+
+  private static final CssImportFlattener IMPORT_FLATTENER = new CssImportFlattener(ASSET_RESOLVER,
+      new CssImportFlattener.SourceReader() {
+        public String read(File file) throws IOException {
+          return getFileContents(file.getPath());
+        }
+      });
+
+  /**
+   * WSU_COMBINE_SCRIPTS
+   * 
+   * @param typeString
+   *          Content type: "text/javascript" or "text/css"
+   * @param items
+   *          The comma separated list of paths relative to the weblayout root
+   * @param compress
+   *          (optional) overrides environment variable
+   * @param group
+   *          The compression group
+   * @throws ServiceException
+   */
+  @ServiceMethod(name = "WSU_COMBINE_SCRIPTS", accessLevel = 49, errorMessage = "WSU Service Error", template = "BLANK")
+  public void WSUCombineScripts(@Binder(name = "type") String typeString, @Binder(name = "items") String items,
+      @Binder(name = "compress", required = false) Boolean compress,
+      @Binder(name = "group", required = false) String group, DataBinder binder) throws ServiceException, DataException {
+
+    // if not supplied, default to environment specified compress directive
+    if (compress == null) {
+      compress = SharedObjects.getEnvValueAsBoolean("WSUCompressScripts", false);
+    }
+
+    int type = parseType(typeString);
+
+    List<String> itemList = getCleanItemList(items);
+
+    binder.putLocal("filePath", getCombinedScriptsPath(itemList, group, type, compress));
+  }
+
+  /**
+   * WSU_SERVE_BUNDLE
+   * 
+   * Sends a bundle from memory rather than the weblayout, with a strong ETag
+   * and support for If-None-Match, Accept-Encoding and Range requests.
+   * 
+   * @param name
+   *          The bundle's file name in the cache directory
+   * @throws ServiceException
+   */
+  @ServiceMethod(name = "WSU_SERVE_BUNDLE", accessLevel = 49, errorMessage = "WSU Service Error", template = "BLANK")
+  public void WSUServeBundle(@Binder(name = "name") String name, DataBinder binder, Service service)
+      throws ServiceException {
+    BundleServer.Response response;
+
+    // without response headers a 304, 206 or gzip body cannot be described,
+    // so always send the whole identity bundle
+    boolean headers = getSetHttpHeader(service) != null;
+
+    try {
+      if (headers) {
+        response = getBundleServer().serve(name, binder.getEnvironmentValue("HTTP_IF_NONE_MATCH"),
+            binder.getEnvironmentValue("HTTP_ACCEPT_ENCODING"), binder.getEnvironmentValue("HTTP_RANGE"),
+            binder.getEnvironmentValue("HTTP_IF_RANGE"));
+      } else {
+        response = getBundleServer().serve(name, null, null, null, null);
+      }
+    } catch (IOException e) {
+      throw new ServiceException("Unable to read bundle: " + name, e);
+    }
+
+    if (response == null) {
+      throw new ServiceException("Bundle not found: " + name);
+    }
+
+    sendResponse(service, name, response, headers);
+  }
+
+  /**
+   * Hand a response to UCM: the body as the service's download stream, the
+   * status and headers through its HTTP implementor.
+   * 
+   * @param service
+   * @param name
+   * @param response
+   * @param headers
+   *          false if the HTTP implementor cannot set response headers
+   */
+  private static void sendResponse(Service service, String name, BundleServer.Response response, boolean headers) {
+    if (headers) {
+      sendHeaders(service, response);
+    }
+
+    ByteBuffer body = response.getBody() != null ? response.getBody() : ByteBuffer.allocate(0);
+
+    DataStreamWrapper stream = service.getDownloadStream(true);
+
+    if (name.endsWith(".map")) {
+      stream.m_dataType = "application/json; charset=" + charset.name();
+    } else {
+      stream.m_dataType = (name.endsWith(".css") ? "text/css" : "text/javascript") + "; charset=" + charset.name();
+    }
+    stream.m_clientFileName = name;
+    stream.initWithInputStream(new ByteBufferInputStream(body), body.remaining());
+  }
+
+  private static void sendHeaders(Service service, BundleServer.Response response) {
+    Map<String, String> headers = new LinkedHashMap<String, String>(response.getHeaders());
+
+    // bundles with content hashed names never change
+    if (SharedObjects.getEnvValueAsBoolean(ENV_CONTENT_HASH_FILENAMES, false)) {
+      headers.put("Cache-Control", "public, max-age=31536000, immutable");
+    } else {
+      headers.put("Cache-Control", "no-cache");
+    }
+
+    if (response.getStatus() != 200) {
+      headers.put("Status", Integer.toString(response.getStatus()));
+    }
+
+    Object http = service.getHttpImplementor();
+    Method setHttpHeader = getSetHttpHeader(service);
+
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      try {
+        setHttpHeader.invoke(http, header.getKey(), header.getValue());
+      } catch (Exception e) {
+        SystemUtils.trace("wsu", "sendHeaders: cannot set " + header.getKey() + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Returns the setHttpHeader method of the service's HTTP implementor, which
+   * not every UCM version has. It is looked up once.
+   * 
+   * @param service
+   * @return the method, or null if response headers cannot be set
+   */
+  private static Method getSetHttpHeader(Service service) {
+    synchronized (WSUServiceHandler.class) {
+      if (!setHttpHeaderChecked) {
+        setHttpHeaderChecked = true;
+
+        Object http = service.getHttpImplementor();
+
+        try {
+          setHttpHeaderMethod = http != null ? http.getClass().getMethod("setHttpHeader", String.class,
+              String.class) : null;
+        } catch (NoSuchMethodException e) {
+          setHttpHeaderMethod = null;
+        }
+
+        if (setHttpHeaderMethod == null) {
+          SystemUtils.trace("wsu", "getSetHttpHeader: response headers not supported, WSU_SERVE_BUNDLE "
+              + "sends whole bundles without gzip, ranges or 304 responses");
+        }
+      }
+      return setHttpHeaderMethod;
+    }
+  }
+
+  /**
+   * Returns the server for WSU_SERVE_BUNDLE, created on first use from the
+   * environment configuration.
+   * 
+   * @return
+   */
+  public static BundleServer getBundleServer() {
+    synchronized (WSUServiceHandler.class) {
+      if (bundleServer == null) {
+        long maxBytes = SharedObjects.getEnvironmentInt(ENV_SERVE_MEMORY_SIZE, 32) * 1024L * 1024L;
+
+        bundleServer = new BundleServer(getBundleStore(), maxBytes);
+      }
+      return bundleServer;
+    }
+  }
+
+  /**
+   * Returns the store bundles are kept in, created on first use from the
+   * environment configuration.
+   * 
+   * @return
+   */
+  public static BundleStore getBundleStore() {
+    synchronized (WSUServiceHandler.class) {
+      if (bundleStore == null) {
+        String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
+        File dir = new File(ucmDataRoot + cacheDir);
+
+        if (isPackStore()) {
+          bundleStore = new PackBundleStore(dir);
+        } else {
+          bundleStore = new FileBundleStore(dir);
+        }
+      }
+      return bundleStore;
+    }
+  }
+
+  private static boolean isPackStore() {
+    return "pack".equalsIgnoreCase(SharedObjects.getEnvironmentValue(ENV_BUNDLE_STORE));
+  }
+
+  /**
+   * Bundles in a pack are not in the weblayout, so are always served by
+   * WSU_SERVE_BUNDLE.
+   * 
+   * @return
+   */
+  private static boolean isServedFromService() {
+    return isPackStore() || SharedObjects.getEnvValueAsBoolean(ENV_SERVE_FROM_SERVICE, false);
+  }
+
+  /**
+   * Returns the URL of a file in the cache directory, in the weblayout or
+   * through WSU_SERVE_BUNDLE.
+   * 
+   * @param filename
+   *          path relative to the weblayout root
+   * @return
+   */
+  private static String getBundleUrl(String filename) {
+    if (isServedFromService()) {
+      return SharedObjects.getEnvironmentValue("HttpCgiPath") + "?IdcService=WSU_SERVE_BUNDLE&name="
+          + getStoreName(filename);
+    }
+
+    return SharedObjects.getEnvironmentValue("HttpRelativeWebRoot") + filename;
+  }
+
+  /**
+   * @param filename
+   *          path relative to the weblayout root
+   * @return the name of the file within the cache directory
+   */
+  private static String getStoreName(String filename) {
+    return filename.substring(filename.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * Returns the web path of the combined scripts, creating or refreshing the
+   * cache as needed. This is the in-process equivalent of
+   * WSU_COMBINE_SCRIPTS and needs no service, workspace or user context.
+   * 
+   * @param itemList
+   * @param group
+   *          The compression group, defaults to "scripts"
+   * @param type
+   * @param compress
+   * @return
+   * @throws ServiceException
+   */
+  public static String getCombinedScriptsPath(List<String> itemList, String group, int type, boolean compress)
+      throws ServiceException {
+    if (group == null || group.equals("")) {
+      group = "scripts";
+    }
+
+    // check for cached copy
+    String filename = getCachedScripts(itemList, group, type, compress, null);
+
+    return getBundleUrl(filename);
+  }
+
+  /**
+   * Split [itemList] into consecutive runs whose sources total at most
+   * [maxBytes], so they can be served as several bundles which download in
+   * parallel. Order is kept, and an item larger than [maxBytes] is a run of
+   * its own.
+   * 
+   * @param itemList
+   * @param maxBytes
+   *          0 to keep all items together
+   * @return
+   */
+  public static List<List<String>> splitItemList(List<String> itemList, long maxBytes) {
+    List<List<String>> runs = new ArrayList<List<String>>();
+    List<String> run = new ArrayList<String>();
+    long runBytes = 0;
+
+    for (String item : itemList) {
+      File file = getItemFile(item);
+      long bytes = file != null ? file.length() : 0;
+
+      if (maxBytes > 0 && !run.isEmpty() && runBytes + bytes > maxBytes) {
+        runs.add(run);
+        run = new ArrayList<String>();
+        runBytes = 0;
+      }
+
+      run.add(item);
+      runBytes += bytes;
+    }
+
+    if (!run.isEmpty()) {
+      runs.add(run);
+    }
+
+    return runs;
+  }
+
+  /**
+   * Returns the filename of the cached scripts. If the cache is invalid, it
+   * recreates it.
+   * 
+   * @param itemList
+   * @param type
+   * @param compress
+   * @param binder
+   * @return
+   * @throws ServiceException
+   */
+  public static String getCachedScripts(final List<String> itemList, final String group, final int type,
+      final boolean compress, DataBinder binder) throws ServiceException {
+    final BundleManifest manifest = getManifest();
+    final Minifier minifier = getMinifier(group);
+    final String key = getBundleKey(itemList, group, type, compress);
+
+    BundleManifest.Entry entry = manifest.get(key);
+
+    if (entry != null) {
+      SystemUtils.trace("wsu", "getCachedScripts: manifest HIT: " + entry.getFilename());
+      getCacheSweeper().recordServed(entry.getName());
+      return entry.getFilename();
+    }
+
+    final String filename = getCacheFilename(key, type, compress);
+    BuildCoordinator builds = getBuildCoordinator();
+
+    // another request is rebuilding this bundle, serve the previous copy
+    if (builds.isBuilding(key) && SharedObjects.getEnvValueAsBoolean(ENV_SERVE_STALE, false)
+        && getBundleStore().lastModified(getStoreName(filename)) > 0) {
+      builds.recordStaleServed();
+      SystemUtils.trace("wsu", "getCachedScripts: serving stale copy during rebuild: " + filename);
+      return filename;
+    }
+
+    return builds.build(key, new Callable<String>() {
+      public String call() throws ServiceException {
+        SystemUtils.trace("wsu", "getCachedScripts: read from: " + filename);
+
+        // fingerprint sources before building so concurrent edits are
+        // revalidated
+        List<String> items = expandItems(itemList, type);
+        List<File> sources = getItemFiles(items);
+        long[] fingerprints = BundleManifest.fingerprint(sources);
+        List<List<File>> dependencies = getDependencies(sources);
+
+        String bundleFilename = filename;
+
+        // content hashed names are only known once the bundle is built
+        if (SharedObjects.getEnvValueAsBoolean(ENV_CONTENT_HASH_FILENAMES, false)
+            || !cacheFileIsValid(items, filename)) {
+          bundleFilename = createCache(key, minifier, items, type, filename, compress);
+
+          for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = getBuiltFingerprint(sources.get(i), fingerprints[i], dependencies.get(i));
+          }
+        }
+
+        BundleDefinition definition = new BundleDefinition(group, type, compress, itemList);
+
+        BundleManifest.Entry entry = new BundleManifest.Entry(definition, bundleFilename, getBundleStore(),
+            sources, fingerprints);
+
+        manifest.put(key, entry);
+        getCacheSweeper().recordServed(entry.getName());
+
+        return bundleFilename;
+      }
+    });
+  }
+
+  /**
+   * Returns the key of a bundle in the manifest, which also names its file.
+   * The key changes with the settings sources are processed with, so
+   * bundles built with other settings are not served or reused.
+   * 
+   * @param itemList
+   * @param group
+   * @param type
+   * @param compress
+   * @return
+   */
+  private static String getBundleKey(List<String> itemList, String group, int type, boolean compress) {
+    return group.toLowerCase().trim() + "_"
+        + BundleKey.compute(itemList, type, compress, getMinifier(group).getName(), getProcessingKey(type));
+  }
+
+  /**
+   * Returns the contents of the combined scripts if the bundle is no larger
+   * than [maxBytes], for inlining into the page. The contents are read once
+   * and then held in memory with the bundle's manifest entry, so they are
+   * dropped when the bundle is rebuilt or invalidated.
+   * 
+   * @param itemList
+   * @param group
+   *          The compression group, defaults to "scripts"
+   * @param type
+   * @param compress
+   * @param maxBytes
+   * @return the contents, or null if the bundle is too large or unavailable
+   * @throws ServiceException
+   */
+  public static String getInlineScripts(List<String> itemList, String group, int type, boolean compress,
+      long maxBytes) throws ServiceException {
+    if (group == null || group.equals("")) {
+      group = "scripts";
+    }
+
+    getCachedScripts(itemList, group, type, compress, null);
+
+    BundleManifest.Entry entry = getBundleEntry(itemList, group, type, compress);
+
+    if (entry == null || entry.getLength() > maxBytes) {
+      return null;
+    }
+
+    String content = entry.getContent();
+
+    if (content == null) {
+      try {
+        ByteBuffer bundle = getBundleStore().read(entry.getName());
+
+        if (bundle == null) {
+          return null;
+        }
+
+        content = charset.decode(bundle).toString();
+      } catch (IOException e) {
+        SystemUtils.trace("wsu", "getInlineScripts: cannot read: " + entry.getFilename() + ": " + e.getMessage());
+        return null;
+      }
+
+      // source maps are linked relative to the bundle, not the page
+      String mapName = entry.getName() + ".map";
+      content = content.replace("sourceMappingURL=" + mapName, "sourceMappingURL="
+          + getBundleUrl(entry.getFilename() + ".map"));
+
+      entry.setContent(content);
+    }
+
+    return content;
+  }
+
+  /**
+   * Returns the manifest entry of a bundle which was already requested.
+   * 
+   * @param itemList
+   * @param group
+   *          The compression group, defaults to "scripts"
+   * @param type
+   * @param compress
+   * @return the entry, or null while a stale copy is served during a rebuild
+   */
+  public static BundleManifest.Entry getBundleEntry(List<String> itemList, String group, int type,
+      boolean compress) {
+    if (group == null || group.equals("")) {
+      group = "scripts";
+    }
+
+    return getManifest().get(getBundleKey(itemList, group, type, compress));
+  }
+
+  /**
+   * Check bundles which were looked up earlier are still current and record
+   * they were served, as a manifest hit would.
+   * 
+   * @param entries
+   * @return false if any of the bundles was invalidated or replaced
+   */
+  public static boolean touchBundles(List<BundleManifest.Entry> entries) {
+    BundleManifest manifest = getManifest();
+
+    for (BundleManifest.Entry entry : entries) {
+      if (!manifest.touch(entry)) {
+        return false;
+      }
+    }
+
+    for (BundleManifest.Entry entry : entries) {
+      getCacheSweeper().recordServed(entry.getName());
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the cache filename relative to the weblayout root.
+   * 
+   * @param key
+   *          the group and bundle key
+   * @param type
+   * @param compress
+   * @return
+   */
+  private static String getCacheFilename(String key, int type, boolean compress) {
+    String filename = cacheDir + key;
+
+    if (compress) {
+      filename += "_c";
+    }
+
+    if (type == TYPE_CSS) {
+      filename += ".css";
+    } else {
+      filename += ".js";
+    }
+
+    return filename;
+  }
+
+  /**
+   * Returns the shared bundle manifest, created on first use from the
+   * environment configuration.
+   * 
+   * @return
+   */
+  public static BundleManifest getManifest() {
+    synchronized (WSUServiceHandler.class) {
+      if (manifest == null) {
+        int maxEntries = SharedObjects.getEnvironmentInt(ENV_MANIFEST_MAX_ENTRIES, 1000);
+        int revalidateSeconds = SharedObjects.getEnvironmentInt(ENV_MANIFEST_REVALIDATE_INTERVAL, 60);
+
+        manifest = new BundleManifest(maxEntries, revalidateSeconds * 1000L);
+      }
+      return manifest;
+    }
+  }
+
+  /**
+   * Returns the sweeper which bounds the cache directory, created on first
+   * use from the environment configuration. Bundles it removes are dropped
+   * from the manifest.
+   * 
+   * @return
+   */
+  public static CacheSweeper getCacheSweeper() {
+    synchronized (WSUServiceHandler.class) {
+      if (sweeper == null) {
+        String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
+
+        long maxBytes = SharedObjects.getEnvironmentInt(ENV_CACHE_MAX_SIZE, 512) * 1024L * 1024L;
+        int maxFiles = SharedObjects.getEnvironmentInt(ENV_CACHE_MAX_FILES, 10000);
+        long maxAge = SharedObjects.getEnvironmentInt(ENV_CACHE_MAX_AGE, 2592000) * 1000L;
+
+        sweeper = new CacheSweeper(new File(ucmDataRoot + cacheDir), getBundleStore(), maxBytes, maxFiles, maxAge,
+            TEMP_FILE_MAX_AGE);
+
+        sweeper.addListener(new CacheSweeper.Listener() {
+          public void bundleRemoved(File bundle) {
+            getManifest().invalidateBundle(bundle);
+          }
+        });
+      }
+      return sweeper;
+    }
+  }
+
+  /**
+   * Sweep the cache directory now and then periodically in the background.
+   */
+  public static void startCacheSweeper() {
+    getCacheSweeper().start(SharedObjects.getEnvironmentInt(ENV_CACHE_SWEEP_INTERVAL, 3600) * 1000L);
+  }
+
+  /**
+   * Returns the local copies of remote items, created on first use from the
+   * environment configuration.
+   * 
+   * @return
+   */
+  public static RemoteSourceMirror getRemoteMirror() {
+    synchronized (WSUServiceHandler.class) {
+      if (remoteMirror == null) {
+        String dataDir = SharedObjects.getEnvironmentValue("DataDir");
+
+        int connectTimeout = SharedObjects.getEnvironmentInt(ENV_REMOTE_CONNECT_TIMEOUT, 5000);
+        int readTimeout = SharedObjects.getEnvironmentInt(ENV_REMOTE_READ_TIMEOUT, 10000);
+        long maxBytes = SharedObjects.getEnvironmentInt(ENV_REMOTE_MAX_SIZE, 2048) * 1024L;
+
+        remoteMirror = new RemoteSourceMirror(new File(dataDir, "wsu/remote"), connectTimeout, readTimeout, maxBytes,
+            getRemoteHosts());
+      }
+      return remoteMirror;
+    }
+  }
+
+  /**
+   * Revalidate the remote items in use periodically in the background.
+   */
+  public static void startRemoteMirror() {
+    if (getRemoteHosts().isEmpty()) {
+      return;
+    }
+
+    getRemoteMirror().start(SharedObjects.getEnvironmentInt(ENV_REMOTE_REVALIDATE_INTERVAL, 3600) * 1000L);
+  }
+
+  /**
+   * Returns the lower case hosts which remote items may be downloaded from.
+   * 
+   * @return
+   */
+  private static Set<String> getRemoteHosts() {
+    Set<String> hosts = new HashSet<String>();
+    String value = SharedObjects.getEnvironmentValue(ENV_REMOTE_HOSTS);
+
+    if (value != null) {
+      for (String host : value.split(",")) {
+        if (host.trim().length() > 0) {
+          hosts.add(host.trim().toLowerCase());
+        }
+      }
+    }
+
+    return hosts;
+  }
+
+  /**
+   * Rebuild the bundles used before the last restart in the background, and
+   * periodically save the bundles in use for the next restart.
+   */
+  public static void startCacheWarmer() {
+    String dataDir = SharedObjects.getEnvironmentValue("DataDir");
+
+    int maxBundles = SharedObjects.getEnvironmentInt(ENV_PREWARM_MAX_BUNDLES, 200);
+    long throttle = SharedObjects.getEnvironmentInt(ENV_PREWARM_THROTTLE, 250);
+
+    if (maxBundles <= 0) {
+      return;
+    }
+
+    BundleWarmer warmer = new BundleWarmer(new File(dataDir, "wsu/bundles.txt"), maxBundles, throttle);
+
+    warmer.warm(new BundleWarmer.Builder() {
+      public void build(BundleDefinition definition) throws ServiceException {
+        getCachedScripts(definition.getItems(), definition.getGroup(), definition.getType(),
+            definition.isCompress(), null);
+      }
+    });
+
+    warmer.startSaving(new Callable<List<BundleDefinition>>() {
+      public List<BundleDefinition> call() {
+        List<BundleDefinition> definitions = new ArrayList<BundleDefinition>();
+
+        for (BundleManifest.Entry entry : getManifest().getEntries()) {
+          definitions.add(entry.getDefinition());
+        }
+
+        return definitions;
+      }
+    }, PREWARM_SAVE_INTERVAL);
+  }
+
+  /**
+   * Invalidate every bundle which includes a content item, after it was
+   * checked in, updated or deleted. The bundles are rebuilt in the background
+   * unless WSURebuildOnChange is disabled.
+   * 
+   * Rebuilds run on their own thread rather than the build executor, as a
+   * parallel build waits on tasks it submits to that executor.
+   * 
+   * @param contentId
+   */
+  public static void invalidateContent(String contentId) {
+    List<BundleDefinition> definitions = getManifest().invalidateContent(contentId);
+
+    SystemUtils.trace("wsu", "invalidateContent: " + contentId + ": " + definitions.size() + " bundles");
+
+    if (!SharedObjects.getEnvValueAsBoolean(ENV_REBUILD_ON_CHANGE, true)) {
+      return;
+    }
+
+    for (final BundleDefinition definition : definitions) {
+      getRebuildExecutor().execute(new Runnable() {
+        public void run() {
+          try {
+            getCachedScripts(definition.getItems(), definition.getGroup(), definition.getType(),
+                definition.isCompress(), null);
+          } catch (ServiceException e) {
+            SystemUtils.trace("wsu", "invalidateContent: rebuild failed: " + e.getMessage());
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the coordinator for bundle builds, which also holds the build
+   * counters.
+   * 
+   * @return
+   */
+  public static BuildCoordinator getBuildCoordinator() {
+    synchronized (WSUServiceHandler.class) {
+      if (builds == null) {
+        builds = new BuildCoordinator(SharedObjects.getEnvironmentInt(ENV_BUILD_TIMEOUT, 120) * 1000L);
+      }
+      return builds;
+    }
+  }
+
+  /**
+   * Expand the items of a stylesheet bundle with the stylesheets they import,
+   * if enabled, so imported stylesheets are combined and tracked like any
+   * other item.
+   * 
+   * @param itemList
+   * @param type
+   * @return
+   */
+  private static List<String> expandItems(List<String> itemList, int type) {
+    if (type != TYPE_CSS || !SharedObjects.getEnvValueAsBoolean(ENV_CSS_FLATTEN_IMPORTS, false)) {
+      return itemList;
+    }
+
+    List<String> items = IMPORT_FLATTENER.expand(itemList);
+
+    if (items.size() > itemList.size()) {
+      SystemUtils.trace("wsu", "expandItems: " + (items.size() - itemList.size()) + " imported stylesheets");
+    }
+
+    return items;
+  }
+
+  /**
+   * Map each local item to its file in the weblayout directory.
+   * 
+   * @param itemList
+   * @return
+   */
+  private static List<File> getItemFiles(List<String> itemList) {
+    List<File> sources = new ArrayList<File>();
+
+    for (String item : itemList) {
+      File source = getItemFile(item);
+
+      // skip remote items which are not allowed or could not be downloaded
+      if (source != null) {
+        sources.add(source);
+      }
+    }
+
+    return sources;
+  }
+
+  /**
+   * Map a web path to its file in the weblayout directory, or a remote URL
+   * to its local copy.
+   * 
+   * @param item
+   * @return the file, or null if the item is not served from the weblayout
+   *         and is not an allowed remote item
+   */
+  public static File getItemFile(String item) {
+    if (RemoteSourceMirror.isRemote(item)) {
+      return getRemoteFile(item);
+    }
+
+    String httpRelativeWebRoot = SharedObjects.getEnvironmentValue("HttpRelativeWebRoot");
+
+    if (!item.startsWith(httpRelativeWebRoot)) {
+      return null;
+    }
+
+    String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
+
+    return new File(ucmDataRoot + item.substring(httpRelativeWebRoot.length()));
+  }
+
+  /**
+   * Returns the local copy of a remote item, if its host is allowed.
+   * 
+   * @param url
+   * @return the copy, or null if the item is not allowed or unavailable
+   */
+  private static File getRemoteFile(String url) {
+    String host;
+
+    try {
+      host = new URL(url).getHost().toLowerCase();
+    } catch (MalformedURLException e) {
+      SystemUtils.trace("wsu", "getRemoteFile: invalid URL: " + url);
+      return null;
+    }
+
+    if (!getRemoteHosts().contains(host)) {
+      SystemUtils.trace("wsu", "getRemoteFile: host not allowed in " + ENV_REMOTE_HOSTS + ": " + url);
+      return null;
+    }
+
+    return getRemoteMirror().getFile(url);
+  }
+
+  /**
+   * Determine if the cache file is still valid by comparing it to each item's
+   * last modified date.
+   * 
+   * @param itemList
+   * @param filename
+   * @return
+   */
+  public static boolean cacheFileIsValid(List<String> itemList, String filename) {
+    Long cacheLastModified = getBundleStore().lastModified(getStoreName(filename));
+
+    if (cacheLastModified == 0) {
+      SystemUtils.trace("wsu", "cacheFileIsValid: MISS: cache doesn't exist: " + filename);
+      return false;
+    }
+
+    for (String s : itemList) {
+      File item = getItemFile(s);
+
+      // not included in the bundle
+      if (item == null) {
+        continue;
+      }
+
+      String fullPath = item.getPath();
+
+      if (item.exists()) {
+        if (item.lastModified() > cacheLastModified) {
+          SystemUtils.trace("wsu", "cacheFileIsValid: MISS: " + fullPath + " modified after: " + cacheLastModified);
+          return false;
+        }
+
+        for (File dependency : SourceDependencies.get(item)) {
+          if (!dependency.exists() || dependency.lastModified() > cacheLastModified) {
+            SystemUtils.trace("wsu", "cacheFileIsValid: MISS: dependency changed: " + dependency);
+            return false;
+          }
+        }
+      } else {
+        // the item was deleted, the cache still contains it
+        SystemUtils.trace("wsu", "cacheFileIsValid: MISS: cant find file: " + fullPath);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Create the output for caching from each item in the list. Sources are
+   * streamed into the cache file one at a time rather than concatenated in
+   * memory.
+   * 
+   * If content hashed filenames are enabled, a hash of the bundle is added to
+   * [filename] and the resulting name is returned.
+   * 
+   * @param itemList
+   * @param type
+   * @param filename
+   * @param compress
+   * @return
+   * @throws ServiceException
+   */
+  public static String createCache(List<String> itemList, int type, String filename, boolean compress)
+      throws ServiceException {
+    return createCache(null, Minifiers.getDefault(), expandItems(itemList, type), type, filename, compress);
+  }
+
+  /**
+   * Create the output for caching, reusing the output of unchanged sources
+   * from the previous build of the bundle identified by [key].
+   * 
+   * @param key
+   *          the bundle key, or null to build from scratch
+   * @param minifier
+   * @param itemList
+   * @param type
+   * @param filename
+   * @param compress
+   * @return
+   * @throws ServiceException
+   */
+  private static String createCache(String key, final Minifier minifier, List<String> itemList, final int type,
+      String filename, final boolean compress) throws ServiceException {
+
+    final List<File> sources = getItemFiles(itemList);
+    final List<BundleSegments.Segment> segments = new ArrayList<BundleSegments.Segment>();
+
+    final BundleSourceMap sourceMap = SharedObjects.getEnvValueAsBoolean(ENV_SOURCE_MAPS, false) ? new BundleSourceMap()
+        : null;
+
+    BundleSegments previous = key != null ? getSegmentCache().get(key) : null;
+
+    if (previous != null && !previous.isIntact()) {
+      previous = null;
+    }
+
+    final BundleSegments reusable = previous;
+
+    BundleContent content = new BundleContent() {
+      public void writeTo(BundleFileWriter out) throws IOException {
+        long[] fingerprints = BundleManifest.fingerprint(sources);
+        List<List<File>> dependencies = getDependencies(sources);
+        BundleSegments.Segment[] reused = new BundleSegments.Segment[sources.size()];
+
+        ByteBuffer previousBundle = reusable != null ? reusable.read() : null;
+
+        for (int i = 0; i < reused.length; i++) {
+          if (previousBundle != null) {
+            reused[i] = reusable.find(sources.get(i).getPath(), fingerprints[i]);
+
+            // segments built without a source map cannot be mapped
+            if (reused[i] != null && sourceMap != null && reused[i].getSection() == null) {
+              reused[i] = null;
+            }
+          }
+        }
+
+        List<Future<MinifiedSource>> compressed = null;
+
+        // a build already on the executor compresses inline rather than wait
+        // on tasks queued behind it
+        if (compress && sources.size() > 1 && SharedObjects.getEnvValueAsBoolean(ENV_PARALLEL_BUILD, false)
+            && buildThread.get() == null) {
+          compressed = compressSourcesInParallel(sources, reused, type, minifier, sourceMap != null);
+        }
+
+        int reusedCount = 0;
+
+        try {
+          for (int i = 0; i < reused.length; i++) {
+            File source = sources.get(i);
+            long start = out.position();
+            BundleSourceMap.Section section = null;
+
+            if (reused[i] != null) {
+              ByteBuffer segment = previousBundle.duplicate();
+              segment.position((int) reused[i].getOffset());
+              segment.limit((int) (reused[i].getOffset() + reused[i].getLength()));
+
+              out.write(segment);
+              section = reused[i].getSection();
+              reusedCount++;
+
+            } else {
+              String output = null;
+              String map = null;
+
+              try {
+                if (!compress) {
+                  if (sourceMap == null && type != TYPE_CSS) {
+                    SystemUtils.trace("wsu", "writeSource: READ: " + source);
+                    out.transferFrom(source);
+                  } else {
+                    // the content is needed to process or map it
+                    output = processSource(source, type, getFileContents(source.getPath()));
+                  }
+                } else {
+                  MinifiedSource minified = getMinifiedSource(source, type, minifier, sourceMap != null,
+                      compressed != null ? compressed.get(i) : null);
+                  output = minified.getContent() + "\n";
+                  map = minified.getSourceMap();
+                }
+              } catch (IOException ioe) {
+                // failed sources are not recorded, so the next build retries
+                // them
+                writeSourceError(out, source, ioe, sourceMap);
+                continue;
+              }
+
+              if (output != null) {
+                out.write(output);
+              }
+
+              if (sourceMap != null) {
+                String sourceUrl = getSourceUrl(source);
+
+                if (!compress) {
+                  section = BundleSourceMap.identity(sourceUrl, output);
+                } else if (map != null) {
+                  section = BundleSourceMap.mapped(map, output);
+                } else {
+                  section = BundleSourceMap.whole(sourceUrl, output);
+                }
+              }
+            }
+
+            if (sourceMap != null) {
+              sourceMap.add(section);
+            }
+
+            long fingerprint = reused[i] != null ? fingerprints[i] : getBuiltFingerprint(source, fingerprints[i],
+                dependencies.get(i));
+
+            segments.add(new BundleSegments.Segment(source.getPath(), fingerprint, start, out.position() - start,
+                section));
+          }
+
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while building bundle");
+
+        } finally {
+          if (compressed != null) {
+            for (Future<MinifiedSource> future : compressed) {
+              if (future != null) {
+                future.cancel(false);
+              }
+            }
+          }
+        }
+
+        SystemUtils.trace("wsu", "createCache: reused " + reusedCount + " of " + sources.size() + " segments");
+      }
+    };
+
+    String written = writeCache(content, filename, SharedObjects.getEnvValueAsBoolean(ENV_CONTENT_HASH_FILENAMES,
+        false), sourceMap);
+
+    if (written == null) {
+      return filename;
+    }
+
+    if (key != null) {
+      getSegmentCache().put(key, new BundleSegments(getBundleStore(), getStoreName(written), segments));
+    }
+
+    return written;
+  }
+
+  /**
+   * Get the minified contents of a source, waiting for it if it is already
+   * being minified in the background.
+   * 
+   * @param source
+   * @param type
+   * @param minifier
+   * @param sourceMap
+   *          true to also map the output back to the source
+   * @param compressed
+   *          the source already being compressed in the background, or null
+   *          to compress it now
+   * @return
+   * @throws IOException
+   *           if the source could not be read
+   * @throws InterruptedException
+   */
+  private static MinifiedSource getMinifiedSource(File source, int type, Minifier minifier, boolean sourceMap,
+      Future<MinifiedSource> compressed) throws IOException, InterruptedException {
+    if (compressed == null) {
+      // each source is minified once and the output reused across bundles
+      return getMinifiedSource(source, type, minifier, sourceMap);
+    }
+
+    try {
+      return compressed.get();
+
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException("Failed to compress source: " + source, e.getCause());
+    }
+  }
+
+  private static void writeSourceError(BundleFileWriter out, File source, IOException ioe, BundleSourceMap sourceMap)
+      throws IOException {
+    SystemUtils.trace("wsu", "IO error: " + source + ": " + ioe.getMessage());
+    ioe.printStackTrace();
+
+    String comment = String.format("/* IO error: %s */\n", source);
+    out.write(comment);
+
+    if (sourceMap != null) {
+      sourceMap.skip(comment);
+    }
+  }
+
+  /**
+   * Start compressing the sources which cannot be reused concurrently on the
+   * build executor.
+   * 
+   * @param sources
+   * @param reused
+   *          segments reused from the previous build, by source index
+   * @param type
+   * @param minifier
+   * @param sourceMap
+   *          true to also map the output back to each source
+   * @return a future for each source, null for sources which are reused
+   */
+  private static List<Future<MinifiedSource>> compressSourcesInParallel(List<File> sources,
+      BundleSegments.Segment[] reused, final int type, final Minifier minifier, final boolean sourceMap) {
+    ExecutorService executor = getBuildExecutor();
+
+    List<Future<MinifiedSource>> futures = new ArrayList<Future<MinifiedSource>>(sources.size());
+
+    for (int i = 0; i < reused.length; i++) {
+      final File source = sources.get(i);
+
+      if (reused[i] != null) {
+        futures.add(null);
+        continue;
+      }
+
+      futures.add(executor.submit(new Callable<MinifiedSource>() {
+        public MinifiedSource call() throws IOException {
+          return getMinifiedSource(source, type, minifier, sourceMap);
+        }
+      }));
+    }
+
+    return futures;
+  }
+
+  /**
+   * Prepare the content of a source for bundling: stylesheets have their
+   * relative url() references rewritten, and small assets embedded. The
+   * files embedded are recorded as dependencies of the source.
+   * 
+   * @param source
+   * @param type
+   * @param content
+   * @return
+   */
+  private static String processSource(File source, int type, String content) {
+    if (type != TYPE_CSS) {
+      return content;
+    }
+
+    // the imported stylesheets are already in the bundle
+    if (SharedObjects.getEnvValueAsBoolean(ENV_CSS_FLATTEN_IMPORTS, false)) {
+      content = IMPORT_FLATTENER.strip(content, getSourceUrl(source));
+    }
+
+    if (!SharedObjects.getEnvValueAsBoolean(ENV_CSS_REWRITE_URLS, false)) {
+      return content;
+    }
+
+    long embedMaxBytes = SharedObjects.getEnvironmentInt(ENV_CSS_EMBED_MAX_SIZE, 0);
+
+    List<File> embedded = new ArrayList<File>();
+
+    content = new CssUrlRewriter(ASSET_RESOLVER, embedMaxBytes).rewrite(content, getSourceUrl(source), embedded);
+
+    SourceDependencies.record(source, embedded);
+
+    return content;
+  }
+
+  /**
+   * Identifies the settings {@link #processSource} applies to sources of
+   * [type], so bundles and minified output processed with other settings are
+   * not reused.
+   * 
+   * @param type
+   * @return
+   */
+  private static String getProcessingKey(int type) {
+    if (type != TYPE_CSS) {
+      return "";
+    }
+
+    String key = "";
+
+    if (SharedObjects.getEnvValueAsBoolean(ENV_CSS_FLATTEN_IMPORTS, false)) {
+      key += ":imports";
+    }
+
+    if (SharedObjects.getEnvValueAsBoolean(ENV_CSS_REWRITE_URLS, false)) {
+      key += ":urls:" + SharedObjects.getEnvironmentInt(ENV_CSS_EMBED_MAX_SIZE, 0);
+    }
+
+    return key;
+  }
+
+  /**
+   * Returns the dependencies currently recorded for each source.
+   * 
+   * @param sources
+   * @return
+   */
+  private static List<List<File>> getDependencies(List<File> sources) {
+    List<List<File>> dependencies = new ArrayList<List<File>>(sources.size());
+
+    for (File source : sources) {
+      dependencies.add(SourceDependencies.get(source));
+    }
+
+    return dependencies;
+  }
+
+  /**
+   * Returns the fingerprint of the version of [source] output was built
+   * from. This is [fingerprint], taken before the build, unless processing
+   * found different dependencies, in which case it is taken again so it
+   * includes them.
+   * 
+   * @param source
+   * @param fingerprint
+   * @param dependencies
+   *          the dependencies [fingerprint] was taken with
+   * @return
+   */
+  private static long getBuiltFingerprint(File source, long fingerprint, List<File> dependencies) {
+    if (SourceDependencies.get(source).equals(dependencies)) {
+      return fingerprint;
+    }
+    return BundleManifest.fingerprint(source);
+  }
+
+  /**
+   * Returns the web path of a source, as referenced from source maps.
+   * 
+   * @param source
+   * @return
+   */
+  private static String getSourceUrl(File source) {
+    String url = remoteMirror != null ? remoteMirror.getUrl(source) : null;
+
+    if (url != null) {
+      return url;
+    }
+
+    String ucmDataRoot = new File(SharedObjects.getEnvironmentValue("WeblayoutDir")).getPath();
+    String path = source.getPath();
+
+    if (path.startsWith(ucmDataRoot)) {
+      path = path.substring(ucmDataRoot.length());
+    }
+
+    path = path.replace(File.separatorChar, '/');
+
+    if (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+
+    return SharedObjects.getEnvironmentValue("HttpRelativeWebRoot") + path;
+  }
+
+  /**
+   * Returns the segments of recently built bundles, by bundle key.
+   * 
+   * @return
+   */
+  private static Map<String, BundleSegments> getSegmentCache() {
+    synchronized (WSUServiceHandler.class) {
+      if (segmentCache == null) {
+        final int maxEntries = SharedObjects.getEnvironmentInt(ENV_MANIFEST_MAX_ENTRIES, 1000);
+
+        segmentCache = Collections.synchronizedMap(new LinkedHashMap<String, BundleSegments>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, BundleSegments> eldest) {
+            return size() > maxEntries;
+          }
+        });
+      }
+      return segmentCache;
+    }
+  }
+
+  /**
+   * Returns the executor for parallel bundle builds. Its thread count is
+   * bounded by WSUBuildThreads so a cold cache cannot take every CPU from
+   * request threads.
+   * 
+   * @return
+   */
+  public static ExecutorService getBuildExecutor() {
+    synchronized (WSUServiceHandler.class) {
+      if (buildExecutor == null) {
+        int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int threads = Math.max(1, SharedObjects.getEnvironmentInt(ENV_BUILD_THREADS, defaultThreads));
+
+        buildExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+              public void run() {
+                buildThread.set(Boolean.TRUE);
+                r.run();
+              }
+            }, "WSU bundle builder " + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+          }
+        });
+
+        SystemUtils.trace("wsu", "getBuildExecutor: started with " + threads + " threads");
+      }
+      return buildExecutor;
+    }
+  }
+
+  /**
+   * Returns the executor which rebuilds invalidated bundles in the
+   * background, one at a time.
+   * 
+   * @return
+   */
+  private static ExecutorService getRebuildExecutor() {
+    synchronized (WSUServiceHandler.class) {
+      if (rebuildExecutor == null) {
+        rebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "WSU bundle rebuilder");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+          }
+        });
+      }
+      return rebuildExecutor;
+    }
+  }
+
+  /**
+   * Store the output into the cache file. The file is replaced atomically, so
+   * readers never see a partially written bundle.
+   * 
+   * @param content
+   * @param filename
+   * @return
+   * @throws ServiceException
+   */
+  public static boolean storeCache(final String content, String filename) throws ServiceException {
+    return storeCache(new BundleContent() {
+      public void writeTo(BundleFileWriter out) throws IOException {
+        out.write(content);
+      }
+    }, filename);
+  }
+
+  /**
+   * Stream the output into the cache file. The file is replaced atomically,
+   * so readers never see a partially written bundle.
    * 
-   * @param typeString
-   *          Content type: "text/javascript" or "text/css"
-   * @param items
-   *          The comma separated list of paths relative to the weblayout root
-   * @param compress
-   *          (optional) overrides environment variable
-   * @param group
-   *          The compression group
+   * @param content
+   * @param filename
+   * @return
    * @throws ServiceException
    */
-  @ServiceMethod(name = "WSU_COMBINE_SCRIPTS", accessLevel = 49, errorMessage = "WSU Service Error", template = "BLANK")
-  public void WSUCombineScripts(@Binder(name = "type") String typeString, @Binder(name = "items") String items,
-      @Binder(name = "compress", required = false) Boolean compress,
-      @Binder(name = "group", required = false) String group, DataBinder binder) throws ServiceException, DataException {
+  public static boolean storeCache(BundleContent content, String filename) throws ServiceException {
+    return writeCache(content, filename, false, null) != null;
+  }
 
-    // if not supplied, default to environment specified compress directive
-    if (compress == null) {
-      compress = SharedObjects.getEnvValueAsBoolean("WSUCompressScripts", false);
-    }
+  /**
+   * Stream the output into the cache file. If [hashContent] is set a hash of
+   * the bundle is inserted before the extension of [filename], and previous
+   * versions are removed once their grace period has passed.
+   * 
+   * @param content
+   * @param filename
+   * @param hashContent
+   * @return the filename written or null if the write failed
+   * @throws ServiceException
+   */
+  private static String writeCache(BundleContent content, String filename, boolean hashContent,
+      BundleSourceMap sourceMap) throws ServiceException {
+    String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
 
-    String httpRelativeWebRoot = SharedObjects.getEnvironmentValue("HttpRelativeWebRoot");
+    File baseDir = new File(ucmDataRoot + cacheDir);
 
-    int type = parseType(typeString);
+    if (!baseDir.exists()) {
+      if (baseDir.mkdir()) {
+        SystemUtils.trace("wsu", "storeCache: created: " + baseDir);
+      } else {
+        throw new ServiceException("Cannot create required directory: " + baseDir);
+      }
+    }
 
-    List<String> itemList = getCleanItemList(items);
+    BundleFileWriter out = null;
 
-    if (group == null || "" == group) {
-      group = "scripts";
-    }
+    try {
+      // write to a temp file and move it into place once it is complete
+      out = new BundleFileWriter(new File(ucmDataRoot + filename), charset);
+      content.writeTo(out);
+
+      if (hashContent) {
+        // everything written so far is already in the file
+        int extension = filename.lastIndexOf('.');
+        filename = filename.substring(0, extension) + "." + getFileHash(out.getTempFile())
+            + filename.substring(extension);
+      }
 
-    // check for cached copy
-    String combinedScriptsPath = getCachedScripts(itemList, group, type, compress, binder);
+      BundleStore store = getBundleStore();
+      String mapName = getStoreName(filename) + ".map";
 
-    binder.putLocal("filePath", httpRelativeWebRoot + combinedScriptsPath);
-  }
+      if (sourceMap != null) {
+        // the map is in place before the bundle which references it
+        storeSourceMap(new File(ucmDataRoot + filename + ".map"), sourceMap);
+        out.write(getSourceMapComment(filename, isServedFromService() ? getBundleUrl(filename + ".map") : mapName));
+      } else if (store.lastModified(mapName) > 0) {
+        store.remove(mapName);
+      }
 
-  /**
-   * Returns the filename of the cached scripts. If the cache is invalid, it
-   * recreates it.
-   * 
-   * @param itemList
-   * @param type
-   * @param compress
-   * @param binder
-   * @return
-   * @throws ServiceException
-   */
-  public static String getCachedScripts(List<String> itemList, String group, int type, boolean compress,
-      DataBinder binder) throws ServiceException {
-    String filename = cacheDir + group.toLowerCase().trim() + "_" + getHash(itemList);
+      out.close();
+      store.put(getStoreName(filename), out.getTempFile());
 
-    if (compress) {
-      filename += "_c";
-    }
+    } catch (IOException e) {
+      SystemUtils.trace("wsu", "Failed to write file: " + ucmDataRoot + filename + ": " + e.getMessage());
+      if (out != null) {
+        out.abort();
+      }
+      return null;
 
-    if (type == TYPE_CSS) {
-      filename += ".css";
-    } else {
-      filename += ".js";
+    } catch (RuntimeException e) {
+      // e.g. a minifier failing part way through, the build fails but the
+      // temp file must not be left behind
+      if (out != null) {
+        out.abort();
+      }
+      throw e;
     }
 
-    SystemUtils.trace("wsu", "getCachedScripts: read from: " + filename);
+    SystemUtils.trace("wsu", "storeCache: " + filename);
 
-    if (cacheFileIsValid(itemList, filename)) {
-      return filename;
+    storePrecompressed(filename);
+
+    if (hashContent) {
+      retireOldVersions(getStoreName(filename));
     }
 
-    return createCache(itemList, type, filename, compress);
+    return filename;
   }
 
   /**
-   * Determine if the cache file is still valid by comparing it to each item's
-   * last modified date.
+   * Remove previous versions of a content hashed bundle. A version is kept
+   * for the grace period after it was first seen to be superseded, so pages
+   * rendered with its URL can still load it.
    * 
-   * @param itemList
-   * @param filename
-   * @return
+   * @param currentName
+   *          the current version of the bundle
    */
-  public static boolean cacheFileIsValid(List<String> itemList, String filename) {
-    String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
-    String HttpRelativeWebRoot = SharedObjects.getEnvironmentValue("HttpRelativeWebRoot");
+  private static void retireOldVersions(String currentName) {
+    // group_KEY_c.HASH.js -> group_KEY_c.
+    int hashStart = currentName.lastIndexOf('.', currentName.lastIndexOf('.') - 1);
+    String prefix = currentName.substring(0, hashStart + 1);
 
-    String cachePath = ucmDataRoot + filename;
+    BundleStore store = getBundleStore();
 
-    File file = new File(cachePath);
-
-    if (!file.exists()) {
-      SystemUtils.trace("wsu", "cacheFileIsValid: MISS: cache doesn't exist: " + cachePath);
-      return false;
-    }
+    long now = System.currentTimeMillis();
+    long gracePeriod = SharedObjects.getEnvironmentInt(ENV_CONTENT_HASH_GRACE_PERIOD, 86400) * 1000L;
 
-    Long cacheLastModified = file.lastModified();
+    for (String version : store.list()) {
+      if (!version.startsWith(prefix) || version.startsWith(currentName)) {
+        continue;
+      }
 
-    for (String s : itemList) {
-      String fullPath = ucmDataRoot + s.substring(HttpRelativeWebRoot.length());
+      Long retiredAt = retiredBundles.putIfAbsent(version, now);
 
-      File item = new File(fullPath);
-      if (item.exists()) {
-        if (item.lastModified() > cacheLastModified) {
-          SystemUtils.trace("wsu", "cacheFileIsValid: MISS: " + fullPath + " modified after: " + cacheLastModified);
-          return false;
+      if (retiredAt != null && now - retiredAt > gracePeriod) {
+        if (store.remove(version) || store.lastModified(version) == 0) {
+          retiredBundles.remove(version);
+          SystemUtils.trace("wsu", "retireOldVersions: removed: " + version);
         }
-      } else {
-        SystemUtils.trace("wsu", "cacheFileIsValid: MISS: cant find file: " + fullPath);
       }
     }
-    return true;
   }
 
   /**
-   * Create the output for caching from each item in the list
+   * Get a hex hash of a file's contents, used to name content hashed bundles.
    * 
-   * @param itemList
-   * @param type
-   * @param filename
-   * @param compress
+   * @param file
    * @return
-   * @throws ServiceException
+   * @throws IOException
    */
-  public static String createCache(List<String> itemList, int type, String filename, boolean compress)
-      throws ServiceException {
-
-    String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
+  private static String getFileHash(File file) throws IOException {
+    MessageDigest digest;
 
-    String HttpRelativeWebRoot = SharedObjects.getEnvironmentValue("HttpRelativeWebRoot");
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Requested algorithm unavailable");
+    }
 
-    String content = "";
+    FileInputStream in = new FileInputStream(file);
 
-    for (String filePath : itemList) {
-      // skip url items for now
-      if (filePath.startsWith(HttpRelativeWebRoot)) {
-        String fullPath = ucmDataRoot + filePath.substring(HttpRelativeWebRoot.length());
+    try {
+      FileChannel fc = in.getChannel();
+      digest.update(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+    } finally {
+      in.close();
+    }
 
-        try {
-          content += getFileContents(fullPath);
-        } catch (IOException ioe) {
-          SystemUtils.trace("wsu", "IO error: " + fullPath + ": " + ioe.getMessage());
-          content += String.format("/* IO error: %s */\n", fullPath);
-          ioe.printStackTrace();
-        }
-      }
+    byte[] hash = digest.digest();
 
-      if (compress) {
-        content = compressContent(content, type);
-      }
+    StringBuilder hex = new StringBuilder();
 
+    // 80 bits is plenty to tell versions of one bundle apart
+    for (int i = 0; i < 10; i++) {
+      hex.append(String.format("%02x", hash[i]));
     }
 
-    storeCache(content, filename);
+    return hex.toString();
+  }
 
-    return filename;
+  /**
+   * Write the source map of a bundle.
+   * 
+   * @param mapFile
+   * @param sourceMap
+   * @throws IOException
+   */
+  private static void storeSourceMap(File mapFile, BundleSourceMap sourceMap) throws IOException {
+    String bundleName = mapFile.getName().substring(0, mapFile.getName().length() - ".map".length());
+
+    BundleFileWriter out = new BundleFileWriter(mapFile, charset);
+
+    try {
+      out.write(sourceMap.toJson(bundleName));
+      out.close();
+      getBundleStore().put(mapFile.getName(), out.getTempFile());
+    } catch (IOException e) {
+      out.abort();
+      throw e;
+    }
+
+    SystemUtils.trace("wsu", "storeSourceMap: " + mapFile);
   }
 
   /**
-   * Store the output into the cache file
+   * Returns the comment which links a bundle to its source map.
    * 
-   * @param content
    * @param filename
+   *          the bundle
+   * @param mapUrl
+   *          the source map, relative to the bundle
    * @return
-   * @throws ServiceException
    */
-  public static boolean storeCache(String content, String filename) throws ServiceException {
-    String ucmDataRoot = SharedObjects.getEnvironmentValue("WeblayoutDir");
-
-    File baseDir = new File(ucmDataRoot + cacheDir);
-
-    String fullPath = ucmDataRoot + filename;
+  private static String getSourceMapComment(String filename, String mapUrl) {
+    // starts a new line in case the bundle ends in a line comment
+    if (filename.endsWith(".css")) {
+      return "\n/*# sourceMappingURL=" + mapUrl + " */\n";
+    }
+    return "\n//# sourceMappingURL=" + mapUrl + "\n";
+  }
 
-    if (!baseDir.exists()) {
-      if (baseDir.mkdir()) {
-        SystemUtils.trace("wsu", "storeCache: created: " + baseDir);
-      } else {
-        throw new ServiceException("Cannot create required directory: " + baseDir);
+  /**
+   * Write a gzip copy of the bundle next to it, so the web server can serve
+   * it without compressing on every response. If precompression is disabled
+   * any old copy is removed so it cannot go stale.
+   * 
+   * @param filename
+   *          the bundle, relative to the weblayout root
+   */
+  private static void storePrecompressed(String filename) {
+    BundleStore store = getBundleStore();
+    String name = getStoreName(filename);
+    String gzipName = name + ".gz";
+
+    if (!SharedObjects.getEnvValueAsBoolean(ENV_PRECOMPRESS_GZIP, false)) {
+      if (store.lastModified(gzipName) > 0) {
+        store.remove(gzipName);
       }
+      return;
     }
 
+    File gzipFile = new File(SharedObjects.getEnvironmentValue("WeblayoutDir") + filename + ".gz");
+
+    final int level = SharedObjects.getEnvironmentInt(ENV_GZIP_LEVEL, Deflater.BEST_COMPRESSION);
+
+    BundleFileWriter out = null;
+    GZIPOutputStream gzip = null;
+    long size = 0;
+
     try {
-      BufferedWriter out = new BufferedWriter(new FileWriter(fullPath));
-      out.write(content);
+      ByteBuffer bundle = store.read(name);
+
+      if (bundle == null) {
+        return;
+      }
+
+      size = bundle.remaining();
+
+      out = new BundleFileWriter(gzipFile, charset);
+
+      gzip = new GZIPOutputStream(out.getOutputStream(), 8192) {
+        {
+          def.setLevel(level);
+        }
+      };
+
+      byte[] buffer = new byte[8192];
+      while (bundle.hasRemaining()) {
+        int read = Math.min(buffer.length, bundle.remaining());
+        bundle.get(buffer, 0, read);
+        gzip.write(buffer, 0, read);
+      }
+
+      gzip.finish();
       out.close();
+      store.put(gzipName, out.getTempFile());
+
     } catch (IOException e) {
-      SystemUtils.trace("wsu", "Failed to write file: " + fullPath);
-      return false;
+      SystemUtils.trace("wsu", "Failed to write file: " + gzipFile + ": " + e.getMessage());
+      if (out != null) {
+        out.abort();
+      }
+      return;
+
+    } finally {
+      // releases the deflater, the file itself is already closed
+      if (gzip != null) {
+        try {
+          gzip.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
     }
 
-    SystemUtils.trace("wsu", "storeCache: " + fullPath);
+    long compressedSize = store.length(gzipName);
+    long saving = size > 0 ? 100 - (compressedSize * 100 / size) : 0;
 
-    return true;
+    SystemUtils.trace("wsu", "storePrecompressed: " + gzipFile + ": " + size + " -> " + compressedSize + " bytes ("
+        + saving + "% smaller)");
   }
 
   /**
@@ -280,49 +1982,12 @@ public class WSUServiceHandler {
     try {
       FileChannel fc = stream.getChannel();
       MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-      /* Instead of using default, pass in a decoder. */
-      return Charset.defaultCharset().decode(bb).toString();
+      return charset.decode(bb).toString();
     } finally {
       stream.close();
     }
   }
 
-  /**
-   * Gets a unique hash based on a sorted, unique list of items and whether the
-   * request was compressed
-   * 
-   * @param items
-   * @return
-   * @throws ServiceException
-   */
-  private static String getHash(List<String> items) throws ServiceException {
-    List<String> sortedList = new ArrayList<String>();
-
-    for (String s : items) {
-      sortedList.add(s);
-    }
-
-    // sort alphabetically
-    Collections.sort(sortedList, String.CASE_INSENSITIVE_ORDER);
-
-    String combinedStr = "";
-
-    // create single string
-    for (String s : sortedList) {
-      combinedStr += s;
-    }
-
-    String hash = "";
-
-    try {
-      hash = getAdler32(combinedStr);
-    } catch (NoSuchAlgorithmException e) {
-      throw new ServiceException("Requested algorithm unavailable");
-    }
-
-    return hash;
-  }
-
   /**
    * Get MD5 for a String
    * 
@@ -354,34 +2019,142 @@ public class WSUServiceHandler {
   }
 
   /**
-   * Compress content based on supplied type
+   * Get the compressed contents of a source file with the default minifier.
    * 
-   * @param content
+   * @param source
    * @param type
    * @return
+   * @throws IOException
    */
-  public static String compressContent(String content, int type) {
-    StringWriter sw = new StringWriter();
+  public static String getCompressedContents(File source, int type) throws IOException {
+    return getCompressedContents(source, type, Minifiers.getDefault());
+  }
+
+  /**
+   * Get the compressed contents of a source file, from the minified source
+   * cache if the file has not changed since it was last compressed. Sources
+   * which fail to minify are included unminified.
+   * 
+   * @param source
+   * @param type
+   * @param minifier
+   * @return
+   * @throws IOException
+   */
+  public static String getCompressedContents(File source, int type, Minifier minifier) throws IOException {
+    return getMinifiedSource(source, type, minifier, false).getContent();
+  }
 
-    StringReader in = new StringReader(content);
-    int linebreakpos = -1;
+  /**
+   * Get the compressed contents of a source file and, if requested and
+   * supported by [minifier], its source map.
+   * 
+   * @param source
+   * @param type
+   * @param minifier
+   * @param sourceMap
+   * @return
+   * @throws IOException
+   */
+  private static MinifiedSource getMinifiedSource(File source, int type, Minifier minifier, boolean sourceMap)
+      throws IOException {
+    MinifiedSourceCache cache = getMinifiedSourceCache();
 
-    try {
+    String key = minifier.getName() + (sourceMap ? ":map:" : ":") + type + getProcessingKey(type) + ":"
+        + source.getPath();
+    long fingerprint = BundleManifest.fingerprint(source);
+
+    MinifiedSource minified = cache.get(key, fingerprint);
+
+    if (minified == null) {
+      List<File> dependencies = SourceDependencies.get(source);
+
+      String content = processSource(source, type, getFileContents(source.getPath()));
+
+      fingerprint = getBuiltFingerprint(source, fingerprint, dependencies);
+
+      try {
+        if (sourceMap && minifier instanceof SourceMapMinifier) {
+          minified = ((SourceMapMinifier) minifier).minifyWithSourceMap(content, type, getSourceUrl(source));
+        } else {
+          minified = new MinifiedSource(minifier.minify(content, type, source.getPath()), null);
+        }
+      } catch (IOException e) {
+        SystemUtils.trace("wsu", "getCompressedContents: including unminified: " + e.getMessage());
+        minified = new MinifiedSource(content, null);
+      }
+
+      cache.put(key, fingerprint, minified);
+    } else {
+      SystemUtils.trace("wsu", "getCompressedContents: HIT: " + source);
+    }
 
-      if (type == TYPE_JS) {
-        JavaScriptCompressor compressor = new JavaScriptCompressor(in, null);
+    return minified;
+  }
 
-        compressor.compress(sw, linebreakpos, false, false, false, false);
-      } else if (type == TYPE_CSS) {
-        CssCompressor compressor = new CssCompressor(in);
-        compressor.compress(sw, linebreakpos);
+  /**
+   * Returns the shared cache of minified source files, created on first use
+   * from the environment configuration.
+   * 
+   * @return
+   */
+  public static MinifiedSourceCache getMinifiedSourceCache() {
+    synchronized (WSUServiceHandler.class) {
+      if (minifiedSources == null) {
+        minifiedSources = new MinifiedSourceCache(SharedObjects.getEnvironmentInt(ENV_MINIFIED_CACHE_MAX_ENTRIES,
+            1000));
       }
+      return minifiedSources;
+    }
+  }
 
+  /**
+   * Compress content based on supplied type, with the default minifier
+   * 
+   * @param content
+   * @param type
+   * @return
+   */
+  public static String compressContent(String content, int type) {
+    try {
+      return Minifiers.getDefault().minify(content, type, "content");
     } catch (IOException e) {
       e.printStackTrace();
+      return "";
+    }
+  }
+
+  /**
+   * Returns the minifier configured for [group] by WSUMinifier_[group],
+   * falling back to WSUMinifier and then YUI. The group is lower cased, as in
+   * the bundle key, so the setting is named with the group in lower case.
+   * 
+   * @param group
+   * @return
+   */
+  public static Minifier getMinifier(String group) {
+    String name = null;
+
+    if (group != null) {
+      name = SharedObjects.getEnvironmentValue(ENV_MINIFIER + "_" + group.toLowerCase().trim());
+    }
+
+    if (name == null || name.length() == 0) {
+      name = SharedObjects.getEnvironmentValue(ENV_MINIFIER);
+    }
+
+    if (name == null || name.length() == 0) {
+      return Minifiers.getDefault();
+    }
+
+    Minifier minifier = Minifiers.get(name);
+
+    if (minifier == null) {
+      SystemUtils.trace("wsu", "getMinifier: unknown minifier: " + name + ", using default");
+      return Minifiers.getDefault();
     }
 
-    return sw.toString();
+    return minifier;
   }
 
   /**
@@ -502,4 +2275,37 @@ public class WSUServiceHandler {
       workspace = (Workspace) wsProvider.getProvider();
     return workspace;
   }
+
+  /**
+   * Reads the remaining bytes of a buffer, without copying them.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+
+      return length;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
 }
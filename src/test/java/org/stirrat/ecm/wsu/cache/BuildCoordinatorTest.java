@@ -0,0 +1,115 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import intradoc.common.ServiceException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class BuildCoordinatorTest {
+
+  @Test
+  public void waiterSharesRunningBuild() throws Exception {
+    final BuildCoordinator coordinator = new BuildCoordinator(5000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Thread owner = startBuild(coordinator, new Callable<String>() {
+      public String call() throws Exception {
+        started.countDown();
+        release.await();
+        return "built";
+      }
+    });
+
+    started.await();
+    assertTrue(coordinator.isBuilding("key"));
+
+    final String[] result = new String[1];
+
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          result[0] = coordinator.build("key", new Callable<String>() {
+            public String call() {
+              return "built twice";
+            }
+          });
+        } catch (ServiceException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    waiter.start();
+
+    while (coordinator.getCoalescedWaits() == 0) {
+      Thread.sleep(1);
+    }
+
+    release.countDown();
+    owner.join();
+    waiter.join();
+
+    assertEquals("built", result[0]);
+    assertEquals(1, coordinator.getBuilds());
+    assertEquals(1, coordinator.getCoalescedWaits());
+  }
+
+  @Test
+  public void waiterTimesOut() throws Exception {
+    BuildCoordinator coordinator = new BuildCoordinator(50);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Thread owner = startBuild(coordinator, new Callable<String>() {
+      public String call() throws Exception {
+        started.countDown();
+        release.await();
+        return "built";
+      }
+    });
+
+    started.await();
+
+    try {
+      coordinator.build("key", new Callable<String>() {
+        public String call() {
+          return "second";
+        }
+      });
+      fail("expected a timeout");
+    } catch (ServiceException e) {
+      // expected
+    } finally {
+      release.countDown();
+      owner.join();
+    }
+  }
+
+  @Test(expected = ServiceException.class)
+  public void failureIsRethrown() throws Exception {
+    new BuildCoordinator(1000).build("key", new Callable<String>() {
+      public String call() throws Exception {
+        throw new ServiceException("failed");
+      }
+    });
+  }
+
+  private static Thread startBuild(final BuildCoordinator coordinator, final Callable<String> builder) {
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          coordinator.build("key", builder);
+        } catch (ServiceException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,51 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BundleDefinitionTest {
+
+  @Test
+  public void roundTrips() {
+    BundleDefinition definition = new BundleDefinition("main", 1, true, Arrays.asList("/cs/a.css",
+        "http://cdn.example.com/b.css"));
+
+    String line = definition.toLine();
+    assertEquals("main\t1\ttrue\t/cs/a.css,http://cdn.example.com/b.css", line);
+
+    BundleDefinition parsed = BundleDefinition.parse(line);
+    assertEquals("main", parsed.getGroup());
+    assertEquals(1, parsed.getType());
+    assertTrue(parsed.isCompress());
+    assertEquals(definition.getItems(), parsed.getItems());
+    assertEquals(line, parsed.toLine());
+  }
+
+  @Test
+  public void parsesSingleItemUncompressed() {
+    BundleDefinition parsed = BundleDefinition.parse("scripts\t0\tfalse\t/cs/a.js");
+
+    assertFalse(parsed.isCompress());
+    assertEquals(Arrays.asList("/cs/a.js"), parsed.getItems());
+  }
+
+  @Test
+  public void rejectsInvalidLines() {
+    assertNull(BundleDefinition.parse(""));
+    assertNull(BundleDefinition.parse("main\t0\ttrue"));
+    assertNull(BundleDefinition.parse("main\t0\ttrue\t"));
+    assertNull(BundleDefinition.parse("main\tjs\ttrue\t/cs/a.js"));
+    assertNull(BundleDefinition.parse("main\t0\ttrue\t/cs/a.js\textra"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void itemsAreUnmodifiable() {
+    BundleDefinition.parse("main\t0\ttrue\t/cs/a.js").getItems().add("/cs/b.js");
+  }
+}
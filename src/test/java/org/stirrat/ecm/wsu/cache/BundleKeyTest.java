@@ -0,0 +1,65 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BundleKeyTest {
+
+  private static final List<String> ITEMS = Arrays.asList("/cs/a.js", "/cs/b.js");
+
+  @Test
+  public void keyIsStableHex() {
+    String key = BundleKey.compute(ITEMS, 0, true, "yui");
+
+    assertEquals(32, key.length());
+    assertTrue(key.matches("[0-9A-F]{32}"));
+    assertEquals(key, BundleKey.compute(Arrays.asList("/cs/a.js", "/cs/b.js"), 0, true, "yui"));
+  }
+
+  @Test
+  public void orderChangesKey() {
+    assertFalse(BundleKey.compute(ITEMS, 0, false, null).equals(
+        BundleKey.compute(Arrays.asList("/cs/b.js", "/cs/a.js"), 0, false, null)));
+  }
+
+  @Test
+  public void itemBoundariesChangeKey() {
+    assertFalse(BundleKey.compute(Arrays.asList("ab", "c"), 0, false, null).equals(
+        BundleKey.compute(Arrays.asList("a", "bc"), 0, false, null)));
+    assertFalse(BundleKey.compute(Arrays.asList("a,b"), 0, false, null).equals(
+        BundleKey.compute(Arrays.asList("a", "b"), 0, false, null)));
+  }
+
+  @Test
+  public void typeAndCompressChangeKey() {
+    String js = BundleKey.compute(ITEMS, 0, false, null);
+
+    assertFalse(js.equals(BundleKey.compute(ITEMS, 1, false, null)));
+    assertFalse(js.equals(BundleKey.compute(ITEMS, 0, true, "yui")));
+  }
+
+  @Test
+  public void minifierOnlyCountsWhenCompressing() {
+    assertEquals(BundleKey.compute(ITEMS, 0, false, "yui"), BundleKey.compute(ITEMS, 0, false, "closure"));
+    assertFalse(BundleKey.compute(ITEMS, 0, true, "yui").equals(BundleKey.compute(ITEMS, 0, true, "closure")));
+  }
+
+  @Test
+  public void processingChangesKey() {
+    String css = BundleKey.compute(ITEMS, 1, false, null);
+
+    assertEquals(css, BundleKey.compute(ITEMS, 1, false, null, ""));
+    assertFalse(css.equals(BundleKey.compute(ITEMS, 1, false, null, ":imports")));
+    assertFalse(css.equals(BundleKey.compute(ITEMS, 1, false, null, ":urls:0")));
+    assertFalse(BundleKey.compute(ITEMS, 1, false, null, ":imports").equals(
+        BundleKey.compute(ITEMS, 1, false, null, ":imports:urls:0")));
+    assertFalse(BundleKey.compute(ITEMS, 1, true, "yui", ":urls:0").equals(
+        BundleKey.compute(ITEMS, 1, true, "yui", ":urls:4096")));
+  }
+}
@@ -0,0 +1,171 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BundleServerTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("wsu", "serve");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private void write(String name, String content, long lastModified) throws IOException {
+    File file = new File(dir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content.getBytes("UTF-8"));
+    out.close();
+    file.setLastModified(lastModified);
+  }
+
+  private static String body(BundleServer.Response response) throws IOException {
+    ByteBuffer body = response.getBody();
+    byte[] bytes = new byte[body.remaining()];
+    body.duplicate().get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  @Test
+  public void parsesSingleRanges() {
+    assertArrayEquals(new long[] { 0, 9 }, BundleServer.parseRange("bytes=0-9", 100));
+    assertArrayEquals(new long[] { 90, 99 }, BundleServer.parseRange("bytes=90-", 100));
+    assertArrayEquals(new long[] { 90, 99 }, BundleServer.parseRange("bytes=90-200", 100));
+    assertArrayEquals(new long[] { 80, 99 }, BundleServer.parseRange("bytes=-20", 100));
+    assertArrayEquals(new long[] { 0, 99 }, BundleServer.parseRange("bytes=-200", 100));
+    assertArrayEquals(new long[] { 5, 5 }, BundleServer.parseRange(" Bytes=5-5 ", 100));
+  }
+
+  @Test
+  public void unsatisfiableRanges() {
+    assertArrayEquals(new long[] { -1, -1 }, BundleServer.parseRange("bytes=100-", 100));
+    assertArrayEquals(new long[] { -1, -1 }, BundleServer.parseRange("bytes=150-160", 100));
+    assertArrayEquals(new long[] { -1, -1 }, BundleServer.parseRange("bytes=-0", 100));
+  }
+
+  @Test
+  public void ignoredRanges() {
+    assertNull(BundleServer.parseRange("items=0-9", 100));
+    assertNull(BundleServer.parseRange("bytes=0-9,20-29", 100));
+    assertNull(BundleServer.parseRange("bytes=9-0", 100));
+    assertNull(BundleServer.parseRange("bytes=a-b", 100));
+    assertNull(BundleServer.parseRange("bytes=10", 100));
+  }
+
+  @Test
+  public void acceptsGzip() {
+    assertTrue(BundleServer.acceptsGzip("gzip, deflate"));
+    assertTrue(BundleServer.acceptsGzip("deflate, x-gzip"));
+    assertTrue(BundleServer.acceptsGzip("*"));
+    assertTrue(BundleServer.acceptsGzip("GZIP;q=0.5"));
+    assertFalse(BundleServer.acceptsGzip(null));
+    assertFalse(BundleServer.acceptsGzip(""));
+    assertFalse(BundleServer.acceptsGzip("deflate, br"));
+    assertFalse(BundleServer.acceptsGzip("gzip;q=0"));
+    assertFalse(BundleServer.acceptsGzip("*, gzip;q=0"));
+    assertFalse(BundleServer.acceptsGzip("gzip;q=x"));
+  }
+
+  @Test
+  public void matchesETags() {
+    assertTrue(BundleServer.matches("\"a\"", "\"a\""));
+    assertTrue(BundleServer.matches("\"b\", \"a\"", "\"a\""));
+    assertTrue(BundleServer.matches("W/\"a\"", "\"a\""));
+    assertTrue(BundleServer.matches("*", "\"a\""));
+    assertFalse(BundleServer.matches("\"b\"", "\"a\""));
+  }
+
+  @Test
+  public void rejectsOtherNames() {
+    assertTrue(BundleServer.isBundleName("main_36819E6C693711B7177C0CBEFF638C5A.js"));
+    assertTrue(BundleServer.isBundleName("main_36819E6C.1a2b3c4d.css.map"));
+    assertFalse(BundleServer.isBundleName("../main.js"));
+    assertFalse(BundleServer.isBundleName("main.txt"));
+    assertFalse(BundleServer.isBundleName(null));
+  }
+
+  @Test
+  public void servesRepresentations() throws IOException {
+    write("a.js", "var a = 1;", 10000);
+    write("a.js.gz", "gzipped", 20000);
+
+    BundleServer server = new BundleServer(new FileBundleStore(dir), 1024);
+
+    BundleServer.Response identity = server.serve("a.js", null, null, null, null);
+    assertEquals(200, identity.getStatus());
+    assertEquals("var a = 1;", body(identity));
+    assertNull(identity.getHeaders().get("Content-Encoding"));
+
+    BundleServer.Response gzip = server.serve("a.js", null, "gzip", null, null);
+    assertEquals("gzip", gzip.getHeaders().get("Content-Encoding"));
+    assertEquals("gzipped", body(gzip));
+    assertFalse(gzip.getHeaders().get("ETag").equals(identity.getHeaders().get("ETag")));
+
+    BundleServer.Response notModified = server.serve("a.js", identity.getHeaders().get("ETag"), null, null, null);
+    assertEquals(304, notModified.getStatus());
+    assertNull(notModified.getBody());
+
+    BundleServer.Response partial = server.serve("a.js", null, null, "bytes=4-4", null);
+    assertEquals(206, partial.getStatus());
+    assertEquals("bytes 4-4/10", partial.getHeaders().get("Content-Range"));
+    assertEquals("a", body(partial));
+
+    BundleServer.Response staleRange = server.serve("a.js", null, null, "bytes=4-4", "\"other\"");
+    assertEquals(200, staleRange.getStatus());
+
+    assertEquals(416, server.serve("a.js", null, null, "bytes=50-", null).getStatus());
+    assertNull(server.serve("b.js", null, null, null, null));
+  }
+
+  @Test
+  public void skipsGzipOlderThanBundle() throws IOException {
+    write("a.js", "var a = 2;", 20000);
+    write("a.js.gz", "old", 10000);
+
+    BundleServer.Response response = new BundleServer(new FileBundleStore(dir), 1024).serve("a.js", null, "gzip",
+        null, null);
+
+    assertEquals("var a = 2;", body(response));
+  }
+
+  @Test
+  public void largeBundlesKeepTheirETagUntilChanged() throws IOException {
+    write("large.js", "var large = 1;", 10000);
+
+    BundleServer server = new BundleServer(new FileBundleStore(dir), 4);
+
+    String etag = server.serve("large.js", null, null, null, null).getHeaders().get("ETag");
+    assertEquals(etag, server.serve("large.js", null, null, null, null).getHeaders().get("ETag"));
+    assertEquals(304, server.serve("large.js", etag, null, null, null).getStatus());
+
+    write("large.js", "var large = 2;", 20000);
+
+    BundleServer.Response changed = server.serve("large.js", etag, null, null, null);
+    assertEquals(200, changed.getStatus());
+    assertFalse(etag.equals(changed.getHeaders().get("ETag")));
+    assertEquals("var large = 2;", body(changed));
+  }
+}
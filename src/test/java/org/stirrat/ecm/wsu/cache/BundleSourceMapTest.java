@@ -0,0 +1,56 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BundleSourceMapTest {
+
+  @Test
+  public void measuresLinesAndLastLine() {
+    assertArrayEquals(new int[] { 0, 0 }, BundleSourceMap.measure(""));
+    assertArrayEquals(new int[] { 0, 3 }, BundleSourceMap.measure("abc"));
+    assertArrayEquals(new int[] { 1, 0 }, BundleSourceMap.measure("abc\n"));
+    assertArrayEquals(new int[] { 2, 2 }, BundleSourceMap.measure("a\nbc\nde"));
+  }
+
+  @Test
+  public void identityMapsEachLine() {
+    BundleSourceMap map = new BundleSourceMap();
+    map.add(BundleSourceMap.identity("/cs/a.js", "a();\nb();\n"));
+
+    assertEquals("{\"version\":3,\"file\":\"bundle.js\",\"sections\":["
+        + "{\"offset\":{\"line\":0,\"column\":0},\"map\":{\"version\":3,\"sources\":[\"/cs/a.js\"],"
+        + "\"names\":[],\"mappings\":\"AAAA;AACA\"}}]}\n", map.toJson("bundle.js"));
+  }
+
+  @Test
+  public void sectionsAreOffsetByPreviousOutput() {
+    BundleSourceMap map = new BundleSourceMap();
+    map.add(BundleSourceMap.identity("/cs/a.js", "a();\nb();\n"));
+    map.skip("/* error */\n");
+    map.add(BundleSourceMap.whole("/cs/b.js", "c();d();"));
+    map.add(BundleSourceMap.mapped(" {\"version\":3,\"sources\":[\"c.js\"],\"mappings\":\"AAAA\"}\n", "e();"));
+
+    String json = map.toJson("bundle.js");
+
+    assertTrue(json, json.contains("{\"offset\":{\"line\":3,\"column\":0},\"map\":{\"version\":3,"
+        + "\"sources\":[\"/cs/b.js\"],\"names\":[],\"mappings\":\"AAAA\"}}"));
+    // output without a trailing line break continues on the same line
+    assertTrue(json, json.contains("{\"offset\":{\"line\":3,\"column\":8},\"map\":{\"version\":3,"
+        + "\"sources\":[\"c.js\"],\"mappings\":\"AAAA\"}}"));
+  }
+
+  @Test
+  public void quotesNames() {
+    BundleSourceMap map = new BundleSourceMap();
+    map.add(BundleSourceMap.whole("/cs/\"q\"\\.js", "a();"));
+
+    String json = map.toJson("b\tundle.js");
+
+    assertTrue(json, json.contains("\"file\":\"b\\u0009undle.js\""));
+    assertTrue(json, json.contains("\"sources\":[\"/cs/\\\"q\\\"\\\\.js\"]"));
+  }
+}
@@ -0,0 +1,102 @@
+package org.stirrat.ecm.wsu.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the cost of the lastModified lookup made for every bundle on
+ * every page, against a FileBundleStore and a PackBundleStore holding the
+ * same number of 2 KB bundles:
+ * 
+ * java -cp [test classes]:[classes]
+ * org.stirrat.ecm.wsu.cache.BundleStoreBenchmark [bundles]
+ * 
+ * Each store is measured three times, the first round warms up the JIT.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleStoreBenchmark {
+
+  private static final int HITS = 1000000;
+
+  private static final int MISSES = 100000;
+
+  public static void main(String[] args) throws Exception {
+    int bundles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+    File dir = File.createTempFile("wsu", "bench");
+    dir.delete();
+
+    File fileDir = new File(dir, "file");
+    File packDir = new File(dir, "pack");
+    fileDir.mkdirs();
+    packDir.mkdirs();
+
+    BundleStore[] stores = { new FileBundleStore(fileDir), new PackBundleStore(packDir) };
+    File[] dirs = { fileDir, packDir };
+
+    // names shaped like those of bundle keys
+    String[] names = new String[bundles];
+
+    for (int i = 0; i < bundles; i++) {
+      names[i] = "group" + (i % 50) + "_" + String.format("%032X", i) + "_c.js";
+
+      for (int s = 0; s < stores.length; s++) {
+        stores[s].put(names[i], createBundle(dirs[s]));
+      }
+    }
+
+    Random random = new Random(1);
+
+    for (int round = 0; round < 3; round++) {
+      for (BundleStore store : stores) {
+        int found = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < HITS; i++) {
+          if (store.lastModified(names[random.nextInt(bundles)]) > 0) {
+            found++;
+          }
+        }
+
+        long hit = (System.nanoTime() - start) / HITS;
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < MISSES; i++) {
+          store.lastModified("missing" + i + ".js");
+        }
+
+        long miss = (System.nanoTime() - start) / MISSES;
+
+        System.out.println(store.getClass().getSimpleName() + ", " + bundles + " bundles: hit " + hit
+            + " ns, miss " + miss + " ns (" + found + " found)");
+      }
+    }
+
+    for (int s = 0; s < dirs.length; s++) {
+      for (File file : dirs[s].listFiles()) {
+        file.delete();
+      }
+
+      dirs[s].delete();
+    }
+
+    dir.delete();
+  }
+
+  private static File createBundle(File dir) throws IOException {
+    File file = File.createTempFile("bundle", BundleFileWriter.TEMP_SUFFIX, dir);
+    FileOutputStream out = new FileOutputStream(file);
+
+    try {
+      out.write(new byte[2048]);
+    } finally {
+      out.close();
+    }
+
+    return file;
+  }
+}
@@ -0,0 +1,70 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileBundleStoreTest {
+
+  private static final String KEY = "36819E6C693711B7177C0CBEFF638C5A";
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("wsu", "files");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private void create(String name) throws IOException {
+    new FileOutputStream(new File(dir, name)).close();
+  }
+
+  @Test
+  public void listsOnlyBundles() throws IOException {
+    create("main_" + KEY + ".js");
+    create("main_" + KEY + "_c.css.gz");
+    create("main_" + KEY + "_c.1a2b3c4d.js.map");
+    create("main_" + KEY + ".js" + BundleFileWriter.TEMP_SUFFIX);
+    create("logo.png");
+    create("custom.js");
+    create("main_36819E6C.js");
+    new File(dir, "remote_" + KEY + ".js").mkdir();
+
+    List<String> names = new FileBundleStore(dir).list();
+    Collections.sort(names);
+
+    assertEquals(Arrays.asList("main_" + KEY + ".js", "main_" + KEY + "_c.1a2b3c4d.js.map", "main_" + KEY
+        + "_c.css.gz"), names);
+  }
+
+  @Test
+  public void bundleNames() {
+    assertTrue(FileBundleStore.isBundleName("main_" + KEY + ".js"));
+    assertTrue(FileBundleStore.isBundleName("my-group_" + KEY + "_c.css"));
+    assertTrue(FileBundleStore.isBundleName("main_" + KEY + "_c.1a2b3c4d.css.gz"));
+    assertFalse(FileBundleStore.isBundleName("main_" + KEY + ".txt"));
+    assertFalse(FileBundleStore.isBundleName("main_" + KEY.toLowerCase() + ".js"));
+    assertFalse(FileBundleStore.isBundleName(KEY + ".js"));
+  }
+}
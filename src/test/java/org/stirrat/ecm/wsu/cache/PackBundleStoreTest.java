@@ -0,0 +1,309 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackBundleStoreTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("wsu", "pack");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private File temp(String content) throws IOException {
+    File file = File.createTempFile("bundle", BundleFileWriter.TEMP_SUFFIX, dir);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content.getBytes("UTF-8"));
+    out.close();
+    return file;
+  }
+
+  private static String read(BundleStore store, String name) throws IOException {
+    ByteBuffer content = store.read(name);
+
+    if (content == null) {
+      return null;
+    }
+
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private File packFile() {
+    return new File(dir, PackBundleStore.PACK_NAME);
+  }
+
+  @Test
+  public void storesReplacesAndRemoves() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+
+    assertEquals(0, store.lastModified("a.js"));
+    assertNull(store.read("a.js"));
+
+    File file = temp("alpha");
+    store.put("a.js", file);
+    store.put("b.css", temp("beta"));
+
+    assertFalse(file.exists());
+    assertEquals("alpha", read(store, "a.js"));
+    assertEquals(4, store.length("b.css"));
+    assertTrue(store.lastModified("b.css") > 0);
+
+    store.put("a.js", temp("alpha2"));
+    assertEquals("alpha2", read(store, "a.js"));
+
+    assertTrue(store.remove("b.css"));
+    assertFalse(store.remove("b.css"));
+    assertNull(store.read("b.css"));
+    assertEquals(Arrays.asList("a.js"), store.list());
+
+    // removed names can be stored again
+    store.put("b.css", temp("beta2"));
+    assertEquals("beta2", read(store, "b.css"));
+  }
+
+  @Test
+  public void readsAreMappedViews() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+
+    ByteBuffer content = store.read("a.js");
+
+    assertTrue(content.isDirect());
+    assertTrue(content.isReadOnly());
+  }
+
+  @Test
+  public void collidingNamesAreToldApart() throws IOException {
+    // "Aa" and "BB" also have the same Arrays.hashCode
+    PackBundleStore store = new PackBundleStore(dir) {
+      @Override
+      long getHash(byte[] name) {
+        return 42;
+      }
+    };
+
+    store.put("Aa.js", temp("first"));
+    assertNull(store.read("BB.js"));
+    assertEquals(0, store.lastModified("BB.js"));
+
+    store.put("BB.js", temp("second"));
+    assertEquals("first", read(store, "Aa.js"));
+    assertEquals("second", read(store, "BB.js"));
+
+    store.remove("Aa.js");
+    assertNull(store.read("Aa.js"));
+    assertEquals("second", read(store, "BB.js"));
+
+    // names are read back from the pack after a restart
+    store = new PackBundleStore(dir) {
+      @Override
+      long getHash(byte[] name) {
+        return 42;
+      }
+    };
+
+    assertNull(store.read("Aa.js"));
+    assertEquals("second", read(store, "BB.js"));
+  }
+
+  @Test
+  public void reopensWithIndex() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+    store.put("b.js", temp("beta"));
+    store.remove("b.js");
+
+    store = new PackBundleStore(dir);
+
+    assertEquals("alpha", read(store, "a.js"));
+    assertNull(store.read("b.js"));
+  }
+
+  @Test
+  public void discardsIncompleteRecord() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+
+    long length = packFile().length();
+
+    // the start of a record, as if the server stopped while writing it
+    RandomAccessFile pack = new RandomAccessFile(packFile(), "rw");
+    pack.seek(length);
+    pack.write(new byte[] { 0x57, 0x53, 0x55, 0x52, 0, 0, 0, 5, 1, 2, 3 });
+    pack.close();
+
+    store = new PackBundleStore(dir);
+
+    assertEquals("alpha", read(store, "a.js"));
+    assertEquals(length, packFile().length());
+
+    store.put("b.js", temp("beta"));
+    assertEquals("beta", read(new PackBundleStore(dir), "b.js"));
+  }
+
+  @Test
+  public void replaysRecordsMissingFromIndex() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+
+    File index = new File(dir, PackBundleStore.INDEX_NAME);
+    File saved = new File(dir, "saved.idx");
+    copy(index, saved);
+
+    store.put("b.js", temp("beta"));
+    store.remove("a.js");
+
+    // an index written before the last records, as after a crash
+    copy(saved, index);
+
+    store = new PackBundleStore(dir);
+
+    assertNull(store.read("a.js"));
+    assertEquals("beta", read(store, "b.js"));
+  }
+
+  @Test
+  public void rebuildsMissingOrForeignIndex() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+    store.put("b.js", temp("beta"));
+    store.remove("b.js");
+
+    File index = new File(dir, PackBundleStore.INDEX_NAME);
+    index.delete();
+
+    store = new PackBundleStore(dir);
+
+    assertEquals("alpha", read(store, "a.js"));
+    assertNull(store.read("b.js"));
+    assertEquals(Arrays.asList("a.js"), store.list());
+
+    // an index of another pack
+    File other = new File(dir, "other");
+    PackBundleStore otherStore = new PackBundleStore(other);
+    otherStore.put("c.js", temp("gamma"));
+    copy(new File(other, PackBundleStore.INDEX_NAME), index);
+    new File(other, PackBundleStore.INDEX_NAME).delete();
+    new File(other, PackBundleStore.PACK_NAME).delete();
+    other.delete();
+
+    store = new PackBundleStore(dir);
+
+    assertEquals("alpha", read(store, "a.js"));
+    assertNull(store.read("c.js"));
+  }
+
+  @Test
+  public void removesCorruptRecords() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+    store.put("a.js", temp("alpha"));
+
+    RandomAccessFile pack = new RandomAccessFile(packFile(), "rw");
+    pack.seek(pack.length() - 1);
+    pack.write('Z');
+    pack.close();
+
+    store = new PackBundleStore(dir);
+
+    assertNull(store.read("a.js"));
+    assertEquals(0, store.lastModified("a.js"));
+  }
+
+  @Test
+  public void growsIndex() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+
+    for (int i = 0; i < 2000; i++) {
+      store.put("n" + i + ".js", temp("v" + i));
+    }
+
+    assertEquals("v0", read(store, "n0.js"));
+    assertEquals("v1999", read(store, "n1999.js"));
+    assertEquals(2000, store.list().size());
+
+    store = new PackBundleStore(dir);
+    assertEquals("v1000", read(store, "n1000.js"));
+  }
+
+  @Test
+  public void compactsOnceMostlyGarbage() throws IOException {
+    PackBundleStore store = new PackBundleStore(dir);
+
+    char[] large = new char[4096];
+    Arrays.fill(large, 'x');
+    String content = new String(large);
+
+    store.put("kept.js", temp("kept"));
+    store.put("removed.js", temp(content));
+    store.remove("removed.js");
+
+    // not enough garbage yet
+    long before = packFile().length();
+    store.compact();
+    assertEquals(before, packFile().length());
+
+    for (int i = 0; i < 400; i++) {
+      store.put("big.js", temp(content + i));
+    }
+
+    before = packFile().length();
+    store.compact();
+    long after = packFile().length();
+
+    assertTrue(before + " -> " + after, after < before / 100);
+    assertEquals(content + 399, read(store, "big.js"));
+    assertEquals("kept", read(store, "kept.js"));
+    assertNull(store.read("removed.js"));
+
+    List<String> names = store.list();
+    Collections.sort(names);
+    assertEquals(Arrays.asList("big.js", "kept.js"), names);
+
+    store.put("after.js", temp("after"));
+
+    store = new PackBundleStore(dir);
+    assertEquals(content + 399, read(store, "big.js"));
+    assertEquals("after", read(store, "after.js"));
+    assertNull(store.read("removed.js"));
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(from, "r");
+    byte[] content = new byte[(int) in.length()];
+    in.readFully(content);
+    in.close();
+
+    FileOutputStream out = new FileOutputStream(to);
+    out.write(content);
+    out.close();
+  }
+}
@@ -0,0 +1,298 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteSourceMirrorTest {
+
+  private StubServer server;
+
+  private File dir;
+
+  private String base;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new StubServer();
+    base = "http://127.0.0.1:" + server.getPort();
+
+    dir = File.createTempFile("wsu", "remote");
+    dir.delete();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+
+    File[] files = dir.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private RemoteSourceMirror createMirror() {
+    return new RemoteSourceMirror(dir, 2000, 2000, 1024, Collections.singleton("127.0.0.1"));
+  }
+
+  @Test
+  public void downloadsOnFirstUse() throws IOException {
+    server.respond("/lib.js", "200 OK", "ETag: \"v1\"", "var lib;");
+
+    File file = createMirror().getFile(base + "/lib.js");
+
+    assertNotNull(file);
+    assertTrue(file.getName().endsWith(".js"));
+    assertEquals("var lib;", read(file));
+  }
+
+  @Test
+  public void revalidatesWithValidators() throws IOException {
+    server.respond("/lib.js", "200 OK", "ETag: \"v1\"", "var lib;");
+
+    RemoteSourceMirror mirror = createMirror();
+    File file = mirror.getFile(base + "/lib.js");
+
+    server.respond("/lib.js", "304 Not Modified", null, null);
+
+    assertFalse(mirror.revalidate(base + "/lib.js"));
+    assertTrue(server.getRequests().get(1).contains("If-None-Match: \"v1\""));
+    assertEquals("var lib;", read(file));
+
+    server.respond("/lib.js", "200 OK", "ETag: \"v2\"", "var lib2;");
+
+    assertTrue(mirror.revalidate(base + "/lib.js"));
+    assertEquals("var lib2;", read(file));
+  }
+
+  @Test
+  public void keepsLastGoodCopy() throws IOException {
+    server.respond("/lib.js", "200 OK", "ETag: \"v1\"", "var lib;");
+
+    RemoteSourceMirror mirror = createMirror();
+    File file = mirror.getFile(base + "/lib.js");
+
+    server.respond("/lib.js", "500 Internal Server Error", null, "error");
+
+    try {
+      mirror.revalidate(base + "/lib.js");
+      fail("expected the failure to be reported");
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertEquals("var lib;", read(file));
+
+    // and across restarts, without contacting the remote
+    server.close();
+
+    assertEquals(file, createMirror().getFile(base + "/lib.js"));
+    assertEquals("var lib;", read(file));
+  }
+
+  @Test
+  public void keepsValidatorsOfSavedCopy() throws IOException {
+    server.respond("/lib.js", "200 OK", "ETag: \"v1\"", "var lib;");
+
+    RemoteSourceMirror mirror = createMirror();
+    File file = mirror.getFile(base + "/lib.js");
+
+    // a directory in the way, so the new version cannot be saved
+    file.delete();
+    File blocker = new File(file, "blocker");
+    blocker.mkdirs();
+
+    server.respond("/lib.js", "200 OK", "ETag: \"v2\"", "var lib2;");
+
+    try {
+      mirror.revalidate(base + "/lib.js");
+      fail("expected the failed write to be reported");
+    } catch (IOException e) {
+      // expected
+    }
+
+    blocker.delete();
+    file.delete();
+    OutputStream out = new FileOutputStream(file);
+    out.write("var lib;".getBytes("UTF-8"));
+    out.close();
+
+    server.respond("/lib.js", "304 Not Modified", null, null);
+
+    assertFalse(mirror.revalidate(base + "/lib.js"));
+    assertTrue(server.getRequests().get(2).contains("If-None-Match: \"v1\""));
+  }
+
+  @Test
+  public void failedDownloadHasNoCopy() throws IOException {
+    server.respond("/lib.js", "404 Not Found", null, "missing");
+
+    assertNull(createMirror().getFile(base + "/lib.js"));
+  }
+
+  @Test
+  public void rejectsHostsNotAllowed() throws IOException {
+    server.respond("/lib.js", "200 OK", null, "var lib;");
+
+    assertNull(createMirror().getFile("http://localhost:" + server.getPort() + "/lib.js"));
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void followsRedirectsOnAllowedHosts() throws IOException {
+    server.respond("/old.js", "302 Found", "Location: /new.js", null);
+    server.respond("/new.js", "200 OK", null, "var moved;");
+
+    assertEquals("var moved;", read(createMirror().getFile(base + "/old.js")));
+  }
+
+  @Test
+  public void rejectsRedirectsToHostsNotAllowed() throws IOException {
+    server.respond("/lib.js", "302 Found", "Location: http://localhost:" + server.getPort() + "/internal", null);
+    server.respond("/internal", "200 OK", null, "secret");
+
+    assertNull(createMirror().getFile(base + "/lib.js"));
+    assertEquals(1, server.getRequests().size());
+  }
+
+  @Test
+  public void stopsRedirectLoops() throws IOException {
+    server.respond("/loop.js", "302 Found", "Location: /loop.js", null);
+
+    assertNull(createMirror().getFile(base + "/loop.js"));
+    assertEquals(6, server.getRequests().size());
+  }
+
+  private static String read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+
+    try {
+      byte[] content = new byte[(int) file.length()];
+      int read = 0;
+
+      while (read < content.length) {
+        read += in.read(content, read, content.length - read);
+      }
+
+      return new String(content, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Answers each request with the response set for its path, one request per
+   * connection, and records the request headers.
+   */
+  private static class StubServer implements Runnable {
+
+    private final ServerSocket socket;
+
+    private final Map<String, String[]> responses = new HashMap<String, String[]>();
+
+    private final List<String> requests = new ArrayList<String>();
+
+    StubServer() throws IOException {
+      socket = new ServerSocket(0);
+
+      Thread thread = new Thread(this, "stub http server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    synchronized void respond(String path, String status, String header, String body) {
+      responses.put(path, new String[] { status, header, body });
+    }
+
+    synchronized List<String> getRequests() {
+      return new ArrayList<String>(requests);
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    public void run() {
+      while (!socket.isClosed()) {
+        try {
+          Socket connection = socket.accept();
+
+          try {
+            handle(connection);
+          } finally {
+            connection.close();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }
+
+    private void handle(Socket connection) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+      StringBuilder request = new StringBuilder();
+      String line;
+
+      while ((line = in.readLine()) != null && line.length() > 0) {
+        request.append(line).append("\n");
+      }
+
+      String path = request.toString().split(" ")[1];
+      String[] response;
+
+      synchronized (this) {
+        requests.add(request.toString());
+        response = responses.get(path);
+      }
+
+      if (response == null) {
+        response = new String[] { "404 Not Found", null, null };
+      }
+
+      byte[] body = response[2] != null ? response[2].getBytes("UTF-8") : new byte[0];
+
+      StringBuilder head = new StringBuilder("HTTP/1.1 " + response[0] + "\r\n");
+
+      if (response[1] != null) {
+        head.append(response[1]).append("\r\n");
+      }
+
+      head.append("Content-Length: ").append(body.length).append("\r\nConnection: close\r\n\r\n");
+
+      OutputStream out = connection.getOutputStream();
+      out.write(head.toString().getBytes("ISO-8859-1"));
+      out.write(body);
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.stirrat.ecm.wsu.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RenderedFragmentCacheTest {
+
+  private static final List<BundleManifest.Entry> NO_BUNDLES = Collections.emptyList();
+
+  @Test
+  public void putAndGet() {
+    RenderedFragmentCache cache = new RenderedFragmentCache(10);
+
+    assertNull(cache.get("a"));
+
+    cache.put("a", "<script src=\"a.js\"></script>", NO_BUNDLES);
+    assertEquals("<script src=\"a.js\"></script>", cache.get("a").getHtml());
+
+    cache.put("a", "<script src=\"a2.js\"></script>", NO_BUNDLES);
+    assertEquals("<script src=\"a2.js\"></script>", cache.get("a").getHtml());
+
+    cache.remove("a");
+    assertNull(cache.get("a"));
+
+    cache.put("b", "b", NO_BUNDLES);
+    cache.clear();
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    RenderedFragmentCache cache = new RenderedFragmentCache(2);
+
+    cache.put("a", "a", NO_BUNDLES);
+    cache.put("b", "b", NO_BUNDLES);
+
+    // a is now more recently used than b
+    assertNotNull(cache.get("a"));
+
+    cache.put("c", "c", NO_BUNDLES);
+
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+
+    cache.put("d", "d", NO_BUNDLES);
+
+    assertNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+  }
+
+  @Test
+  public void keepsItsOwnBundleList() {
+    RenderedFragmentCache cache = new RenderedFragmentCache(10);
+    BundleManifest.Entry entry = createEntry("main_A.js");
+
+    List<BundleManifest.Entry> bundles = new ArrayList<BundleManifest.Entry>();
+    bundles.add(entry);
+
+    cache.put("a", "a", bundles);
+    bundles.clear();
+
+    assertEquals(Arrays.asList(entry), cache.get("a").getBundles());
+  }
+
+  @Test
+  public void bundlesOfFragmentStopBeingCurrent() {
+    BundleManifest manifest = new BundleManifest(10, 0);
+    BundleManifest.Entry first = createEntry("main_A.js");
+    BundleManifest.Entry second = createEntry("main_B.js");
+    manifest.put("main_A", first);
+    manifest.put("main_B", second);
+
+    RenderedFragmentCache cache = new RenderedFragmentCache(10);
+    cache.put("a", "a", Arrays.asList(first, second));
+
+    assertTrue(touchAll(manifest, cache.get("a").getBundles()));
+
+    // as renderScripts sees it once one bundle of the fragment is invalidated
+    manifest.invalidate("main_B");
+    assertFalse(touchAll(manifest, cache.get("a").getBundles()));
+
+    // or replaced by a rebuild
+    manifest.put("main_B", createEntry("main_B.js"));
+    cache.put("b", "b", Arrays.asList(first));
+    manifest.put("main_A", createEntry("main_A.js"));
+    assertFalse(touchAll(manifest, cache.get("b").getBundles()));
+  }
+
+  private static boolean touchAll(BundleManifest manifest, List<BundleManifest.Entry> entries) {
+    for (BundleManifest.Entry entry : entries) {
+      if (!manifest.touch(entry)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static BundleManifest.Entry createEntry(String name) {
+    BundleDefinition definition = new BundleDefinition("main", 0, false, Arrays.asList("/cs/" + name));
+    return new BundleManifest.Entry(definition, "resources/wsu/" + name, new FileBundleStore(new File("missing")),
+        new ArrayList<File>(), new long[0]);
+  }
+}
@@ -0,0 +1,111 @@
+package org.stirrat.ecm.wsu.css;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CssImportFlattenerTest {
+
+  private File dir;
+
+  private final Map<String, String> sources = new HashMap<String, String>();
+
+  private CssImportFlattener flattener;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("wsu", "css");
+    dir.delete();
+    dir.mkdirs();
+
+    flattener = new CssImportFlattener(new CssUrlRewriter.AssetResolver() {
+      public File getFile(String path) {
+        return sources.containsKey(path) ? new File(dir, path.replace('/', '_')) : null;
+      }
+    }, new CssImportFlattener.SourceReader() {
+      public String read(File file) {
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+          if (file.getName().equals(source.getKey().replace('/', '_'))) {
+            return source.getValue();
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private void source(String path, String css) throws IOException {
+    sources.put(path, css);
+    new File(dir, path.replace('/', '_')).createNewFile();
+  }
+
+  @Test
+  public void importsComeBeforeImporter() throws IOException {
+    source("/cs/main.css", "@import \"base.css\";\n@import url(theme/dark.css);\nbody{}");
+    source("/cs/base.css", "@import url('reset.css');\nhtml{}");
+    source("/cs/reset.css", "*{}");
+    source("/cs/theme/dark.css", "@import '../base.css';\n.dark{}");
+
+    assertEquals(Arrays.asList("/cs/reset.css", "/cs/base.css", "/cs/theme/dark.css", "/cs/main.css"),
+        flattener.expand(Arrays.asList("/cs/main.css")));
+  }
+
+  @Test
+  public void eachStylesheetIsIncludedOnce() throws IOException {
+    source("/cs/a.css", "@import \"shared.css\";");
+    source("/cs/b.css", "@import \"shared.css\";");
+    source("/cs/shared.css", "p{}");
+
+    assertEquals(Arrays.asList("/cs/shared.css", "/cs/a.css", "/cs/b.css"),
+        flattener.expand(Arrays.asList("/cs/a.css", "/cs/b.css", "/cs/shared.css")));
+  }
+
+  @Test
+  public void cyclesAreBroken() throws IOException {
+    source("/cs/a.css", "@import \"b.css\";");
+    source("/cs/b.css", "@import \"a.css\";");
+
+    assertEquals(Arrays.asList("/cs/b.css", "/cs/a.css"), flattener.expand(Arrays.asList("/cs/a.css")));
+  }
+
+  @Test
+  public void onlyLocalImportsWithoutMediaAreFlattened() throws IOException {
+    source("/cs/main.css", "/* @import \"commented.css\"; */\n@import \"print.css\" print;\n"
+        + "@import url(http://cdn.example.com/x.css);\n@import \"missing.css\";\n@import \"v.css?v=1\";\n"
+        + "@import \"local.css\";\nbody{}");
+    source("/cs/print.css", "");
+    source("/cs/local.css", "");
+    source("/cs/commented.css", "");
+    source("/cs/v.css", "");
+
+    assertEquals(Arrays.asList("/cs/local.css"),
+        flattener.getImports(sources.get("/cs/main.css"), "/cs/main.css"));
+  }
+
+  @Test
+  public void stripRemovesFlattenedAndAbsolutizesKept() throws IOException {
+    source("/cs/site/local.css", "");
+
+    String css = "@import \"local.css\";\n@import url(print.css) print;\n"
+        + "@import url(http://cdn.example.com/x.css);\nbody{}";
+
+    assertEquals("@import url(\"/cs/site/print.css\") print;\n@import url(http://cdn.example.com/x.css);\nbody{}",
+        flattener.strip(css, "/cs/site/main.css"));
+  }
+}
@@ -0,0 +1,98 @@
+package org.stirrat.ecm.wsu.css;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CssUrlRewriterTest {
+
+  private static final CssUrlRewriter.AssetResolver NO_FILES = new CssUrlRewriter.AssetResolver() {
+    public File getFile(String path) {
+      return null;
+    }
+  };
+
+  @Test
+  public void resolvesRelativePaths() {
+    assertEquals("/cs/site/img/a.png", CssUrlRewriter.resolve("/cs/site/main.css", "img/a.png"));
+    assertEquals("/cs/site/img/a.png", CssUrlRewriter.resolve("/cs/site/main.css", "./img/a.png"));
+    assertEquals("/cs/img/a.png", CssUrlRewriter.resolve("/cs/site/main.css", "../img/a.png"));
+    assertEquals("/img/a.png", CssUrlRewriter.resolve("/cs/site/main.css", "../../../../img/a.png"));
+    assertEquals("/cs/site/fonts/", CssUrlRewriter.resolve("/cs/site/main.css", "fonts/"));
+  }
+
+  @Test
+  public void keepsQueryAndFragment() {
+    assertEquals("/cs/site/f.woff?v=2#x", CssUrlRewriter.resolve("/cs/site/main.css", "f.woff?v=2#x"));
+    assertEquals("/cs/b.svg#icon", CssUrlRewriter.resolve("/cs/a/main.css", "../a/../b.svg#icon"));
+  }
+
+  @Test
+  public void leavesNonRelativeUrls() {
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", ""));
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", "/img/a.png"));
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", "#filter"));
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", "data:image/png;base64,AAAA"));
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", "http://example.com/a.png"));
+    assertNull(CssUrlRewriter.resolve("/cs/main.css", "//example.com/a.png"));
+  }
+
+  @Test
+  public void resolvesAgainstRemoteOrigin() {
+    assertEquals("http://cdn.example.com/lib/img/a.png",
+        CssUrlRewriter.resolve("http://cdn.example.com/lib/css/x.css", "../img/a.png"));
+    assertEquals("http://cdn.example.com/img/a.png",
+        CssUrlRewriter.resolve("http://cdn.example.com/lib/css/x.css", "/img/a.png"));
+    assertNull(CssUrlRewriter.resolve("http://cdn.example.com/lib/css/x.css", "https://other.example.com/a.png"));
+  }
+
+  @Test
+  public void rewritesEachQuoteStyle() {
+    CssUrlRewriter rewriter = new CssUrlRewriter(NO_FILES, 0);
+
+    String css = "a{background:url(img/a.png)} b{background:url( 'img/b.png' )} "
+        + "c{background:url(\"/abs.png\")} d{background:URL(\"../d.png\")}";
+
+    assertEquals("a{background:url(\"/cs/site/img/a.png\")} b{background:url(\"/cs/site/img/b.png\")} "
+        + "c{background:url(\"/abs.png\")} d{background:url(\"/cs/d.png\")}",
+        rewriter.rewrite(css, "/cs/site/main.css", new ArrayList<File>()));
+  }
+
+  @Test
+  public void embedsSmallAssets() throws Exception {
+    final File image = File.createTempFile("wsu", ".png");
+    image.deleteOnExit();
+
+    FileOutputStream out = new FileOutputStream(image);
+    out.write(new byte[] { 'a', 'b', 'c', 'd' });
+    out.close();
+
+    CssUrlRewriter.AssetResolver resolver = new CssUrlRewriter.AssetResolver() {
+      public File getFile(String path) {
+        return path.equals("/cs/site/a.png") ? image : null;
+      }
+    };
+
+    List<File> embedded = new ArrayList<File>();
+
+    String css = new CssUrlRewriter(resolver, 4).rewrite("x{background:url(a.png)} y{background:url(a.png#f)}",
+        "/cs/site/main.css", embedded);
+
+    assertEquals("x{background:url(\"data:image/png;base64,YWJjZA==\")} y{background:url(\"/cs/site/a.png#f\")}",
+        css);
+    assertEquals(1, embedded.size());
+
+    embedded.clear();
+    css = new CssUrlRewriter(resolver, 3).rewrite("x{background:url(a.png)}", "/cs/site/main.css", embedded);
+
+    assertTrue(css, css.contains("url(\"/cs/site/a.png\")"));
+    assertTrue(embedded.isEmpty());
+  }
+}
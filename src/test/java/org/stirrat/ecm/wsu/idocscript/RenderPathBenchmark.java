@@ -0,0 +1,118 @@
+package org.stirrat.ecm.wsu.idocscript;
+
+import intradoc.data.DataBinder;
+import intradoc.shared.SharedObjects;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Times renderJs with WSUCombineScripts on, which resolves the bundle in
+ * process through WSUServiceHandler.getCombinedScriptsPath. Only the
+ * environment is set up, so it runs without a content server:
+ * 
+ * java -cp [test classes]:[classes]:[ucm jar]:[deps]
+ * org.stirrat.ecm.wsu.idocscript.RenderPathBenchmark [sources] [renders]
+ * 
+ * This does not time the nested WSU_COMBINE_SCRIPTS call the in process path
+ * replaced, so it is not a before and after comparison. That call created a
+ * service through ServiceManager and loaded the user's profile from the
+ * system database on every render, neither of which exists outside a running
+ * server. Compare against the old path with the request timings in a
+ * server's "requestaudit" trace.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class RenderPathBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int sources = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int renders = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+    File weblayout = createWeblayout(sources);
+
+    try {
+      SharedObjects.putEnvironmentValue("WeblayoutDir", weblayout.getPath() + "/");
+      SharedObjects.putEnvironmentValue("HttpRelativeWebRoot", "/cs/");
+      SharedObjects.putEnvironmentValue("WSUCombineScripts", "true");
+      SharedObjects.putEnvironmentValue("WSUCompressScripts", "false");
+      // time the bundle lookup, not the memoized tags
+      SharedObjects.putEnvironmentValue("WSURenderCacheSize", "0");
+
+      WSUScriptExtensions extensions = new WSUScriptExtensions();
+
+      long start = System.nanoTime();
+      String tags = render(extensions, sources);
+      long cold = System.nanoTime() - start;
+
+      for (int i = 0; i < renders / 10; i++) {
+        render(extensions, sources);
+      }
+
+      start = System.nanoTime();
+
+      for (int i = 0; i < renders; i++) {
+        render(extensions, sources);
+      }
+
+      long warm = System.nanoTime() - start;
+
+      System.out.println(tags);
+      System.out.printf("%d sources: first render (builds the bundle) %.1f ms, cached render %d ns%n", sources,
+          cold / 1e6, warm / renders);
+    } finally {
+      delete(weblayout);
+    }
+
+    // the build executor and sweeper threads are not stopped
+    System.exit(0);
+  }
+
+  private static String render(WSUScriptExtensions extensions, int sources) throws Exception {
+    DataBinder binder = new DataBinder();
+
+    for (int i = 0; i < sources; i++) {
+      extensions.addJs("/cs/bench/s" + i + ".js", "bench", Long.valueOf(i), binder);
+    }
+
+    return extensions.renderJs("bench", binder);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+
+  private static File createWeblayout(int sources) throws IOException {
+    File weblayout = File.createTempFile("wsu", "bench");
+    weblayout.delete();
+
+    File dir = new File(weblayout, "bench");
+    new File(weblayout, "resources/wsu").mkdirs();
+    dir.mkdirs();
+
+    for (int i = 0; i < sources; i++) {
+      Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, "s" + i + ".js")), "UTF-8");
+
+      try {
+        for (int line = 0; line < 200; line++) {
+          out.write("var s" + i + "_" + line + " = function (a, b) { return a + b + " + line + "; };\n");
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    return weblayout;
+  }
+}
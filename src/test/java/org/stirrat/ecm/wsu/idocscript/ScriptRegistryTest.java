@@ -0,0 +1,128 @@
+package org.stirrat.ecm.wsu.idocscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.stirrat.ecm.wsu.service.WSUServiceHandler.TYPE_CSS;
+import static org.stirrat.ecm.wsu.service.WSUServiceHandler.TYPE_JS;
+import intradoc.data.DataBinder;
+import intradoc.data.DataResultSet;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.junit.Test;
+
+public class ScriptRegistryTest {
+
+  @Test
+  public void sortsByPriorityKeepingOrderAdded() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "c.js", "main", 10);
+    ScriptRegistry.add(binder, TYPE_JS, "a.js", "main", 0);
+    ScriptRegistry.add(binder, TYPE_JS, "d.js", "main", 10);
+    ScriptRegistry.add(binder, TYPE_JS, "b.js", "main", 0);
+    ScriptRegistry.add(binder, TYPE_JS, "first.js", "main", -5);
+
+    assertEquals(Arrays.asList("first.js", "a.js", "b.js", "c.js", "d.js"), ScriptRegistry.get(binder)
+        .getScripts(TYPE_JS, "main"));
+  }
+
+  @Test
+  public void groupsAreCaseInsensitiveAndTypesSeparate() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "a.js", "Main", 0);
+    ScriptRegistry.add(binder, TYPE_CSS, "a.css", "main", 0);
+
+    ScriptRegistry registry = ScriptRegistry.get(binder);
+
+    assertEquals(Arrays.asList("a.js"), registry.getScripts(TYPE_JS, "MAIN"));
+    assertEquals(Arrays.asList("a.css"), registry.getScripts(TYPE_CSS, "main"));
+    assertTrue(registry.getScripts(TYPE_JS, "other").isEmpty());
+  }
+
+  @Test
+  public void firstGroupWins() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "shared.js", "head", 0);
+    ScriptRegistry.add(binder, TYPE_JS, "shared.js", "footer", 0);
+    ScriptRegistry.add(binder, TYPE_JS, "shared.js", "head", 0);
+
+    // the same path as a stylesheet is a different script
+    ScriptRegistry.add(binder, TYPE_CSS, "shared.js", "footer", 0);
+
+    ScriptRegistry registry = ScriptRegistry.get(binder);
+
+    assertEquals(Arrays.asList("shared.js"), registry.getScripts(TYPE_JS, "head"));
+    assertTrue(registry.getScripts(TYPE_JS, "footer").isEmpty());
+    assertEquals(Arrays.asList("shared.js"), registry.getScripts(TYPE_CSS, "footer"));
+    assertEquals(2, getResultSet(binder).getNumRows());
+  }
+
+  @Test
+  public void reusedWhileResultSetUnchanged() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "a.js", "main", 0);
+
+    assertSame(ScriptRegistry.get(binder), ScriptRegistry.get(binder));
+  }
+
+  @Test
+  public void rebuiltWhenRowsAddedDirectly() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "b.js", "main", 5);
+    assertEquals(Arrays.asList("b.js"), ScriptRegistry.get(binder).getScripts(TYPE_JS, "main"));
+
+    // as idoc script would, with an empty sort
+    getResultSet(binder).addRow(row(TYPE_JS, "a.js", "main", ""));
+    getResultSet(binder).addRow(row(TYPE_JS, "b.js", "other", "1"));
+    getResultSet(binder).addRow(row(TYPE_JS, "ignored.js", "main", "first"));
+
+    ScriptRegistry registry = ScriptRegistry.get(binder);
+
+    assertEquals(Arrays.asList("a.js", "b.js"), registry.getScripts(TYPE_JS, "main"));
+    assertTrue(registry.getScripts(TYPE_JS, "other").isEmpty());
+
+    // and later adds still see them
+    ScriptRegistry.add(binder, TYPE_JS, "a.js", "other", 0);
+    assertTrue(ScriptRegistry.get(binder).getScripts(TYPE_JS, "other").isEmpty());
+  }
+
+  @Test
+  public void rebuiltWhenResultSetReplaced() {
+    DataBinder binder = new DataBinder();
+
+    ScriptRegistry.add(binder, TYPE_JS, "old.js", "main", 0);
+
+    DataResultSet replacement = new DataResultSet(new String[] { "type", "script", "group", "sort" });
+    replacement.addRow(row(TYPE_JS, "new.js", "main", "0"));
+    binder.addResultSet(ScriptRegistry.RESULT_SET, replacement);
+
+    assertEquals(Arrays.asList("new.js"), ScriptRegistry.get(binder).getScripts(TYPE_JS, "main"));
+
+    ScriptRegistry.add(binder, TYPE_JS, "old.js", "main", -1);
+    assertEquals(Arrays.asList("old.js", "new.js"), ScriptRegistry.get(binder).getScripts(TYPE_JS, "main"));
+    assertEquals(2, replacement.getNumRows());
+
+    binder.removeResultSet(ScriptRegistry.RESULT_SET);
+    assertTrue(ScriptRegistry.get(binder).getScripts(TYPE_JS, "main").isEmpty());
+  }
+
+  private static DataResultSet getResultSet(DataBinder binder) {
+    return (DataResultSet) binder.getResultSet(ScriptRegistry.RESULT_SET);
+  }
+
+  private static Vector<String> row(int type, String path, String group, String sort) {
+    Vector<String> row = new Vector<String>();
+    row.add(Integer.toString(type));
+    row.add(path);
+    row.add(group);
+    row.add(sort);
+    return row;
+  }
+}
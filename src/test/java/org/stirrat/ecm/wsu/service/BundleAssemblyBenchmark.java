@@ -0,0 +1,167 @@
+package org.stirrat.ecm.wsu.service;
+
+import intradoc.shared.SharedObjects;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the peak heap of one bundle build, assembling the bundle as one
+ * String (as createCache used to) against streaming it with createCache.
+ * Only the environment is set up, so it runs without a content server:
+ * 
+ * java -cp [test classes]:[classes]:[ucm jar]:[deps]
+ * org.stirrat.ecm.wsu.service.BundleAssemblyBenchmark [sources] [kb per source]
+ * 
+ * Peak heap is sampled while each build runs, after a collection, so run it
+ * with a fixed young generation (e.g. -Xmn16m) for figures which compare.
+ * 
+ * @author Tim Stirrat <tim.stirrat@gmail.com>
+ */
+public class BundleAssemblyBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int sources = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    File weblayout = File.createTempFile("wsu", "bench");
+    weblayout.delete();
+    new File(weblayout, "resources/wsu").mkdirs();
+
+    try {
+      SharedObjects.putEnvironmentValue("WeblayoutDir", weblayout.getPath() + "/");
+      SharedObjects.putEnvironmentValue("HttpRelativeWebRoot", "/cs/");
+
+      final List<String> items = createSources(weblayout, sources, kilobytes);
+
+      // warm up both paths so class loading is not counted
+      concatenate(items, "warm.js");
+      WSUServiceHandler.createCache(items, WSUServiceHandler.TYPE_JS, "warm.js", false);
+
+      long concatenated = peakHeap(new Runnable() {
+        public void run() {
+          concatenate(items, "concatenated.js");
+        }
+      });
+
+      long streamed = peakHeap(new Runnable() {
+        public void run() {
+          try {
+            WSUServiceHandler.createCache(items, WSUServiceHandler.TYPE_JS, "streamed.js", false);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+
+      System.out.printf("%d sources of %d KB, peak heap per build: String %d KB, streamed %d KB%n", sources,
+          kilobytes, concatenated / 1024, streamed / 1024);
+    } finally {
+      delete(weblayout);
+    }
+
+    System.exit(0);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+
+  /**
+   * The build as it was: every source decoded and appended to one String.
+   */
+  private static void concatenate(List<String> items, String filename) {
+    try {
+      String content = "";
+      String root = SharedObjects.getEnvironmentValue("WeblayoutDir");
+
+      for (String item : items) {
+        content += WSUServiceHandler.getFileContents(root + item.substring("/cs/".length()));
+      }
+
+      WSUServiceHandler.storeCache(content, filename);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Run [build] and return the most heap it used above what was live before,
+   * sampled every millisecond.
+   */
+  private static long peakHeap(Runnable build) throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    final long[] peak = new long[1];
+    final boolean[] done = new boolean[1];
+
+    System.gc();
+    final long before = runtime.totalMemory() - runtime.freeMemory();
+
+    Thread sampler = new Thread() {
+      public void run() {
+        while (true) {
+          synchronized (peak) {
+            peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory() - before);
+
+            if (done[0]) {
+              return;
+            }
+          }
+
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+
+    sampler.start();
+    build.run();
+
+    synchronized (peak) {
+      done[0] = true;
+    }
+
+    sampler.join();
+
+    return peak[0];
+  }
+
+  private static List<String> createSources(File weblayout, int sources, int kilobytes) throws IOException {
+    File dir = new File(weblayout, "bench");
+    dir.mkdirs();
+
+    List<String> items = new ArrayList<String>();
+
+    for (int i = 0; i < sources; i++) {
+      Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, "s" + i + ".js")), "UTF-8");
+
+      try {
+        for (int line = 0; line * 64 < kilobytes * 1024; line++) {
+          out.write(String.format("var s%d_%d = function (a, b) { return a + b + %d; };%n", i, line, line));
+        }
+      } finally {
+        out.close();
+      }
+
+      items.add("/cs/bench/s" + i + ".js");
+    }
+
+    return items;
+  }
+}